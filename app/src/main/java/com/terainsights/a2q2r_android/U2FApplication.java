@@ -0,0 +1,57 @@
+package com.terainsights.a2q2r_android;
+
+import android.app.Application;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.terainsights.a2q2r_android.util.KeyDatabase;
+import com.terainsights.a2q2r_android.util.U2F;
+import com.terainsights.a2q2r_android.util.Workers;
+
+import java.io.File;
+
+/**
+ * Sets up the state shared by every activity, service and receiver before any
+ * of them start. In particular the key database is opened once per process
+ * and kept open, rather than being reopened by every component that needs it;
+ * SQLite closes it along with the process. Opening it may mean migrating the
+ * schema, so that happens first thing on {@link Workers#DISK} rather than
+ * holding up the first activity; anything else using the database waits
+ * until it is open.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public class U2FApplication extends Application {
+
+    @Override
+    public void onCreate() {
+
+        super.onCreate();
+
+        final KeyDatabase database =
+                new KeyDatabase(new File(getFilesDir(), "registrations.database"));
+
+        U2F.CTX      = getApplicationContext();
+        U2F.DATABASE = database;
+
+        Workers.DISK.execute(new Runnable() {
+            @Override
+            public void run() {
+                database.open();
+            }
+        });
+
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+
+        super.onTrimMemory(level);
+
+        // Drops SQLite's page caches; the connection itself stays open.
+        if (level >= TRIM_MEMORY_BACKGROUND)
+            SQLiteDatabase.releaseMemory();
+
+    }
+
+}
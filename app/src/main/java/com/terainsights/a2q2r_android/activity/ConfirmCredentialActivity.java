@@ -0,0 +1,87 @@
+package com.terainsights.a2q2r_android.activity;
+
+import android.app.Activity;
+import android.app.KeyguardManager;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+
+import com.terainsights.a2q2r_android.R;
+import com.terainsights.a2q2r_android.util.AuthWindow;
+
+/**
+ * An invisible activity which asks the user to confirm their screen lock, so
+ * that requests deferred by the {@link AuthWindow} can be signed. If it goes
+ * away without an answer, e.g. because its task was swiped from the recents
+ * list, the deferred requests are abandoned as if the user had declined, so
+ * that the next request prompts again.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public class ConfirmCredentialActivity extends Activity {
+
+    private static final int CONFIRM_ACTION = 0;
+
+    /**
+     * Whether the {@link AuthWindow} has been told the outcome.
+     */
+    private boolean answered = false;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+
+        super.onCreate(savedInstanceState);
+
+        if (savedInstanceState != null)
+            return; // Already waiting on the confirmation.
+
+        KeyguardManager km = (KeyguardManager) getSystemService(Context.KEYGUARD_SERVICE);
+        Intent intent = km.createConfirmDeviceCredentialIntent(
+                getString(R.string.confirm_credential_title),
+                getString(R.string.confirm_credential_description));
+
+        if (intent == null) {
+            // No secure lock screen, so there is nothing to confirm.
+            answered = true;
+            AuthWindow.confirmed();
+            finish();
+            return;
+        }
+
+        startActivityForResult(intent, CONFIRM_ACTION);
+
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+
+        super.onActivityResult(requestCode, resultCode, data);
+
+        if (requestCode == CONFIRM_ACTION) {
+
+            answered = true;
+
+            if (resultCode == RESULT_OK)
+                AuthWindow.confirmed();
+            else
+                AuthWindow.declined();
+
+            finish();
+
+        }
+
+    }
+
+    @Override
+    protected void onDestroy() {
+
+        super.onDestroy();
+
+        // A recreated instance keeps waiting on the same confirmation.
+        if (!answered && !isChangingConfigurations())
+            AuthWindow.declined();
+
+    }
+
+}
@@ -3,8 +3,9 @@ package com.terainsights.a2q2r_android.activity;
 import android.Manifest;
 import android.app.Activity;
 import android.content.Intent;
-import android.database.Cursor;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
@@ -12,6 +13,7 @@ import android.view.View;
 import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
 import android.widget.AdapterView;
+import android.widget.EditText;
 import android.widget.ListView;
 
 import com.karumi.dexter.Dexter;
@@ -21,16 +23,22 @@ import com.terainsights.a2q2r_android.R;
 import com.terainsights.a2q2r_android.dialog.AuthDialog;
 import com.terainsights.a2q2r_android.dialog.ConfirmDialog;
 import com.terainsights.a2q2r_android.dialog.KeyDescription;
+import com.terainsights.a2q2r_android.util.AuthenticationRequest;
 import com.terainsights.a2q2r_android.util.KeyAdapter;
 import com.terainsights.a2q2r_android.util.KeyDatabase;
+import com.terainsights.a2q2r_android.util.KeyPool;
+import com.terainsights.a2q2r_android.util.Outbox;
 import com.terainsights.a2q2r_android.util.Text;
+import com.terainsights.a2q2r_android.util.Transport;
 import com.terainsights.a2q2r_android.util.U2F;
-import com.terainsights.a2q2r_android.util.Utils;
+import com.terainsights.a2q2r_android.util.U2FRequest;
+import com.terainsights.a2q2r_android.util.Workers;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.File;
+import java.util.List;
+
 
 /**
  * The entry point for the application. Consists of a ListView displaying all of the user's
@@ -40,28 +48,45 @@ import java.io.File;
  * @version 8/19/16
  */
 public class MainActivity extends Activity implements MenuItem.OnMenuItemClickListener,
-        AdapterView.OnItemClickListener {
+        AdapterView.OnItemClickListener, KeyDatabase.KeyListener {
 
     private static int SCAN_ACTION = 0;
     private static int CLEAR_ACTION = 1;
 
+    private KeyAdapter keys;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
 
         super.onCreate(savedInstanceState);
         setContentView(R.layout.main);
 
-        File f = new File(getFilesDir(), "registrations.database");
-
-        U2F.DATABASE = new KeyDatabase(f);
-        U2F.CTX      = getApplicationContext();
-
         ListView registrations = (ListView) findViewById(R.id.registrations_view);
         registrations.setOnItemClickListener(this);
 
-        KeyDatabase.KEY_ADAPTER = new KeyAdapter(this, R.layout.registration_item);
-        U2F.DATABASE.refreshKeyInfo();
-        registrations.setAdapter(KeyDatabase.KEY_ADAPTER);
+        keys = new KeyAdapter(this, R.layout.registration_item, U2F.DATABASE);
+        registrations.setAdapter(keys);
+
+        U2F.DATABASE.addKeyListener(this);
+        keys.reload();
+
+        ((EditText) findViewById(R.id.search_box)).addTextChangedListener(new TextWatcher() {
+
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                keys.setQuery(s.toString());
+            }
+
+        });
+
+        Outbox.flush();
+        KeyPool.refill();
 
         Dexter.initialize(getApplicationContext());
         PermissionListener listener = DialogOnDeniedPermissionListener.Builder
@@ -81,6 +106,22 @@ public class MainActivity extends Activity implements MenuItem.OnMenuItemClickLi
 
     }
 
+    @Override
+    protected void onDestroy() {
+        U2F.DATABASE.removeKeyListener(this);
+        super.onDestroy();
+    }
+
+    @Override
+    public void onKeysChanged(final List<KeyDatabase.KeyChange> changes) {
+        Workers.onMain(new Runnable() {
+            @Override
+            public void run() {
+                keys.apply(changes);
+            }
+        });
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.main, menu);
@@ -119,61 +160,88 @@ public class MainActivity extends Activity implements MenuItem.OnMenuItemClickLi
 
             if (resultCode == RESULT_OK && data != null) {
 
-                String qrContent = data.getStringExtra("qr_content");
+                U2FRequest request = U2FRequest.parse(data.getStringExtra("qr_content"));
+
+                if (request instanceof AuthenticationRequest)
+                    Workers.DISK.execute(new AuthLookup((AuthenticationRequest) request));
+                else
+                    U2F.process(request);
+
+            } else if (resultCode == RESULT_CANCELED) {
+
+                try {
 
-                if (Utils.identifyQRType(qrContent) == 'A') {
+                    if (data.getBooleanExtra("canceled", false))
+                        Text.displayShort(this, R.string.camera_closed);
 
-                    KeyDatabase.ServerInfo serverInfo = U2F.DATABASE
-                            .getServerInfo(qrContent.split(" ")[1]);
+                } catch (NullPointerException e) {}
 
-                    if (serverInfo == null) {
+            }
 
-                        Text.displayShort(this, R.string.unknown_server_error);
-                        return;
+        } else if (requestCode == CLEAR_ACTION && resultCode == RESULT_OK) {
 
-                    }
+            Workers.DISK.execute(new Runnable() {
+                @Override
+                public void run() {
+                    U2F.DATABASE.clear();
+                    System.out.println("Keys have been cleared.");
+                }
+            });
 
-                    String[] split = qrContent.split(" ");
-                    int serverCounter = Integer.parseInt(split[4]);
-                    int deviceCounter = U2F.DATABASE.getCounter(split[3]);
-                    int difference = serverCounter - deviceCounter;
+        }
 
-                    if (difference < 1) {
+    }
 
-                        Text.displayLong(this, R.string.bad_counter_error);
-                        return;
+    /**
+     * Checks a scanned authentication request against the database on the
+     * {@link Workers#DISK} pool, then asks the user to confirm it.
+     */
+    private class AuthLookup implements Runnable {
 
-                    }
+        private final AuthenticationRequest auth;
 
-                    Intent intent = new Intent(this, AuthDialog.class);
-                    intent.putExtra("serverName", serverInfo.appName);
-                    intent.putExtra("serverURL", serverInfo.appURL);
-                    intent.putExtra("authData", data.getStringExtra("qr_content"));
-                    intent.putExtra("missed", difference - 1);
+        AuthLookup(AuthenticationRequest auth) {
+            this.auth = auth;
+        }
 
-                    startActivity(intent);
+        @Override
+        public void run() {
 
-                } else {
+            final KeyDatabase.ServerInfo serverInfo = U2F.DATABASE.getServerInfo(auth.appID);
 
-                    U2F.process(qrContent);
+            if (serverInfo == null) {
 
-                }
+                Text.displayShort(MainActivity.this, R.string.unknown_server_error);
+                return;
 
-            } else if (resultCode == RESULT_CANCELED) {
+            }
 
-                try {
+            int deviceCounter = U2F.DATABASE.getCounter(auth.keyID);
+            final int difference = auth.counter - deviceCounter;
 
-                    if (data.getBooleanExtra("canceled", false))
-                        Text.displayShort(this, R.string.camera_closed);
+            if (difference < 1) {
 
-                } catch (NullPointerException e) {}
+                Text.displayLong(MainActivity.this, R.string.bad_counter_error);
+                return;
 
             }
 
-        } else if (requestCode == CLEAR_ACTION && resultCode == RESULT_OK) {
+            Transport.prewarm(serverInfo.appURL);
 
-            System.out.println("Keys have been cleared.");
-            U2F.DATABASE.clear();
+            Workers.onMain(new Runnable() {
+                @Override
+                public void run() {
+
+                    Intent intent = new Intent(MainActivity.this, AuthDialog.class);
+                    intent.putExtra("serverName", serverInfo.appName);
+                    intent.putExtra("serverURL", serverInfo.appURL);
+                    intent.putExtra("request", auth);
+                    intent.putExtra("missed", difference - 1);
+
+                    startActivity(intent);
+
+                }
+            });
 
         }
 
@@ -183,12 +251,14 @@ public class MainActivity extends Activity implements MenuItem.OnMenuItemClickLi
     public void onItemClick(AdapterView<?> parent, View view, int pos, long id) {
 
         Intent intent = new Intent(this, KeyDescription.class);
-        Cursor cursor = KeyDatabase.KEY_ADAPTER.getCursor();
-        cursor.moveToPosition(pos);
+        KeyDatabase.KeyRow key = keys.getItem(pos);
+
+        if (key == null)
+            return; // Still loading.
 
-        intent.putExtra("userID", cursor.getString(cursor.getColumnIndex("userID")));
-        intent.putExtra("appName", cursor.getString(cursor.getColumnIndex("appName")));
-        intent.putExtra("appURL", cursor.getString(cursor.getColumnIndex("appURL")));
+        intent.putExtra("userID", key.userID);
+        intent.putExtra("appName", key.appName);
+        intent.putExtra("appURL", key.appURL);
 
         startActivity(intent);
 
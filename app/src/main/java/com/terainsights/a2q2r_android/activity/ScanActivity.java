@@ -32,6 +32,7 @@ import android.view.SurfaceView;
 
 import com.terainsights.a2q2r_android.R;
 import com.terainsights.a2q2r_android.util.Scanner;
+import com.terainsights.a2q2r_android.util.Workers;
 
 import java.io.IOException;
 import java.util.List;
@@ -91,7 +92,7 @@ public class ScanActivity extends Activity implements SurfaceHolder.Callback {
             camera.setPreviewCallback(scanner);
 
             if (!scannerActive) {
-                scanner.execute();
+                scanner.executeOnExecutor(Workers.SCAN);
                 scannerActive = true;
             }
 
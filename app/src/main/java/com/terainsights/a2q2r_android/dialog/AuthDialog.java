@@ -2,14 +2,19 @@ package com.terainsights.a2q2r_android.dialog;
 
 import android.app.Activity;
 import android.graphics.Color;
-import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.view.View;
 import android.widget.TextView;
 
 import com.terainsights.a2q2r_android.R;
+import com.terainsights.a2q2r_android.util.AuthenticationRequest;
+import com.terainsights.a2q2r_android.util.RegistrationRequest;
 import com.terainsights.a2q2r_android.util.Text;
+import com.terainsights.a2q2r_android.util.Transport;
 import com.terainsights.a2q2r_android.util.U2F;
+import com.terainsights.a2q2r_android.util.U2FRequest;
+import com.terainsights.a2q2r_android.util.U2FSession;
 
 /**
  * Controller for a simple authentication confirmation dialog which displays
@@ -20,11 +25,30 @@ import com.terainsights.a2q2r_android.util.U2F;
  */
 public class AuthDialog extends Activity implements View.OnClickListener {
 
-    private String authData = null;
+    private U2FRequest request = null;
 
-    private AsyncTask<Void, Void, Void> timer;
+    /**
+     * The server whose connection was pre-warmed for this dialog, or null once
+     * the connection has been claimed or discarded.
+     */
+    private String serverURL = null;
+
+    private final Handler handler = new Handler();
     private static long TIMEOUT_MILLIS = 60_000;
-    private static long POLL_INTERVAL = 1_000;
+
+    /**
+     * Dismisses the dialog if the user doesn't answer in time.
+     */
+    private final Runnable timeout = new Runnable() {
+        @Override
+        public void run() {
+            Text.displayShort(AuthDialog.this, "Timeout.");
+            if (request != null)
+                U2FSession.close(request.challenge);
+            discardConnection();
+            AuthDialog.this.finish();
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -40,10 +64,12 @@ public class AuthDialog extends Activity implements View.OnClickListener {
                 .replace('_', ' '));
             ((TextView) findViewById(R.id.server_url)).setText(extras.getString("serverURL"));
 
-            authData = extras.getString("authData");
+            serverURL = extras.getString("serverURL");
+
+            request = extras.getParcelable("request");
             int missed = extras.getInt("missed");
 
-            String challenge = authData.split(" ")[authData.charAt(0) == 'R' ? 1 : 2];
+            String challenge = request.challenge;
             ((TextView) findViewById(R.id.challenge_excerpt)).setText(challenge.substring(0, 4) +
                     "   " + challenge.substring(4, 8));
             ((TextView) findViewById(R.id.challenge_excerpt_extended)).setText(
@@ -67,36 +93,17 @@ public class AuthDialog extends Activity implements View.OnClickListener {
 
             }
 
-            if (authData.charAt(0) == 'R')
+            if (request instanceof RegistrationRequest)
                 ((TextView) findViewById(R.id.dialog_text)).setText(getString(R.string.reg_confirm));
+            else if (request instanceof AuthenticationRequest)
+                U2F.prepare((AuthenticationRequest) request);
 
         }
 
         findViewById(R.id.okay_button).setOnClickListener(this);
         findViewById(R.id.cancel_button).setOnClickListener(this);
 
-        timer = new AsyncTask<Void, Void, Void>() {
-
-            @Override
-            protected Void doInBackground(Void... params) {
-                long start = System.currentTimeMillis();
-                while (System.currentTimeMillis() - start < TIMEOUT_MILLIS) {
-                    try {
-                        Thread.sleep(POLL_INTERVAL);
-                    } catch (InterruptedException e) {
-                        return null;
-                    }
-                }
-                return null;
-            }
-
-            @Override
-            protected void onPostExecute(Void result) {
-                Text.displayShort(AuthDialog.this, "Timeout.");
-                AuthDialog.this.finish();
-            }
-
-        }.execute();
+        handler.postDelayed(timeout, TIMEOUT_MILLIS);
 
     }
 
@@ -106,26 +113,35 @@ public class AuthDialog extends Activity implements View.OnClickListener {
         switch (v.getId()) {
 
             case R.id.okay_button:
-                timer.cancel(true);
-                if (authData.charAt(0) == 'R') {
+                handler.removeCallbacks(timeout);
+                claimConnection();
+                if (request instanceof RegistrationRequest) {
+
+                    U2FSession session = U2FSession.get(request.challenge);
 
-                    String challenge = U2F.TEMP.get("challenge");
-                    String userID = U2F.TEMP.get("userID");
-                    String body = U2F.TEMP.get("serverData");
-                    U2F.register(challenge, body, userID);
+                    if (session != null && session.server != null)
+                        U2F.register(session);
+                    else
+                        Text.displayShort(this, R.string.session_expired_error);
 
                 } else {
 
-                    U2F.process(authData);
+                    U2F.approve((AuthenticationRequest) request);
 
                 }
                 finish();
                 break;
 
             case R.id.cancel_button:
-                timer.cancel(true);
-                if (authData.charAt(0) == 'A')
-                    U2F.decline(authData);
+                handler.removeCallbacks(timeout);
+                if (request instanceof AuthenticationRequest) {
+                    // The decline is sent over the warm connection.
+                    claimConnection();
+                    U2F.decline((AuthenticationRequest) request);
+                } else {
+                    U2FSession.close(request.challenge);
+                    discardConnection();
+                }
                 finish();
                 break;
 
@@ -133,4 +149,32 @@ public class AuthDialog extends Activity implements View.OnClickListener {
 
     }
 
+    /**
+     * Covers the dialog being dismissed without a button, e.g. with the back key.
+     */
+    @Override
+    protected void onDestroy() {
+        handler.removeCallbacks(timeout);
+        discardConnection();
+        super.onDestroy();
+    }
+
+    /**
+     * Keeps the pre-warmed connection for the request about to be sent.
+     */
+    private void claimConnection() {
+        if (serverURL != null)
+            Transport.claim(serverURL);
+        serverURL = null;
+    }
+
+    /**
+     * Drops the pre-warmed connection, since no request will be sent.
+     */
+    private void discardConnection() {
+        if (serverURL != null)
+            Transport.discard(serverURL);
+        serverURL = null;
+    }
+
 }
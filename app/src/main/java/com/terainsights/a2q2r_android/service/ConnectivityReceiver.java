@@ -0,0 +1,35 @@
+package com.terainsights.a2q2r_android.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+import com.terainsights.a2q2r_android.util.Outbox;
+
+/**
+ * Registered in the manifest for connectivity changes, so that responses waiting
+ * in the {@link Outbox} are sent as soon as the device is back online, even if
+ * the app isn't running.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public class ConnectivityReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+
+        ConnectivityManager cm = (ConnectivityManager) context
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo network = cm.getActiveNetworkInfo();
+
+        if (network == null || !network.isConnected())
+            return;
+
+        Outbox.flush();
+
+    }
+
+}
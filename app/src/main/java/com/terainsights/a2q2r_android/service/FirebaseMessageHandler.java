@@ -1,16 +1,18 @@
 package com.terainsights.a2q2r_android.service;
 
 import android.content.Intent;
+import android.util.Log;
 
 import com.google.firebase.messaging.FirebaseMessagingService;
 import com.google.firebase.messaging.RemoteMessage;
 import com.terainsights.a2q2r_android.R;
 import com.terainsights.a2q2r_android.dialog.AuthDialog;
+import com.terainsights.a2q2r_android.util.AuthenticationRequest;
 import com.terainsights.a2q2r_android.util.KeyDatabase;
 import com.terainsights.a2q2r_android.util.Text;
+import com.terainsights.a2q2r_android.util.Transport;
 import com.terainsights.a2q2r_android.util.U2F;
-
-import java.io.File;
+import com.terainsights.a2q2r_android.util.U2FRequest;
 
 /**
  * This class is specified in the Firebase Cloud Messaging (FCM) service in the
@@ -33,22 +35,25 @@ public class FirebaseMessageHandler extends FirebaseMessagingService {
 
         try {
 
-            U2F.DATABASE = new KeyDatabase(new File(getFilesDir(), "registrations.database"));
-            U2F.CTX = getApplicationContext();
+            long start = System.nanoTime();
 
-            String qrContent = msg.getData().get("authData");
-            KeyDatabase.ServerInfo serverInfo = U2F.DATABASE.getServerInfo(qrContent.split(" ")[1]);
+            U2FRequest parsed = U2FRequest.parse(msg.getData().get("authData"));
 
-            String[] split = qrContent.split(" ");
+            if (!(parsed instanceof AuthenticationRequest)) {
+                System.out.println(getString(R.string.unknown_firebase_error));
+                return;
+            }
 
-            if (!U2F.DATABASE.hasKey(split[3]) || !U2F.DATABASE.hasServer(split[1])) {
+            AuthenticationRequest request = (AuthenticationRequest) parsed;
+            KeyDatabase.ServerInfo serverInfo = U2F.DATABASE.getServerInfo(request.appID);
+
+            if (!U2F.DATABASE.hasKey(request.keyID) || serverInfo == null) {
                 System.out.println(getString(R.string.unknown_firebase_error));
                 return;
             }
 
-            int serverCounter = Integer.parseInt(split[4]);
-            int deviceCounter = U2F.DATABASE.getCounter(split[3]);
-            int difference = serverCounter - deviceCounter;
+            int deviceCounter = U2F.DATABASE.getCounter(request.keyID);
+            int difference = request.counter - deviceCounter;
 
             if (difference < 0) {
 
@@ -62,15 +67,20 @@ public class FirebaseMessageHandler extends FirebaseMessagingService {
 
             }
 
+            Transport.prewarm(serverInfo.appURL);
+
             Intent intent = new Intent(getApplicationContext(), AuthDialog.class);
             intent.putExtra("serverName", serverInfo.appName);
             intent.putExtra("serverURL", serverInfo.appURL);
-            intent.putExtra("authData", qrContent);
+            intent.putExtra("request", request);
             intent.putExtra("missed", difference - 1);
             intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
 
             startActivity(intent);
 
+            Log.i("MONITOR", "Push handling took " + (System.nanoTime() - start) / 1000000 +
+                    " ms");
+
         } catch (NullPointerException e) {
 
             System.out.println(getString(R.string.unknown_firebase_error));
@@ -0,0 +1,23 @@
+package com.terainsights.a2q2r_android.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import com.terainsights.a2q2r_android.util.AuthWindow;
+
+/**
+ * Registered in the manifest for {@link Intent#ACTION_USER_PRESENT}, since
+ * unlocking the device opens the {@link AuthWindow} in which keys can sign.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public class UnlockReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        AuthWindow.userPresent();
+    }
+
+}
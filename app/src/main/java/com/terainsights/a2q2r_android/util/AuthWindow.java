@@ -0,0 +1,162 @@
+package com.terainsights.a2q2r_android.util;
+
+import android.content.Intent;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.terainsights.a2q2r_android.activity.ConfirmCredentialActivity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tracks the window in which the device's keys may be used. On API 23+ keys
+ * require the user to have confirmed their screen lock within the last
+ * {@link #VALIDITY_SECONDS}, and signing outside that window fails only after
+ * the whole message has been built. Instead, signers ask {@link #isOpen(String)}
+ * first, and if the window has lapsed they {@link #defer} their work. All work
+ * deferred while a confirmation is on screen is resumed by that one
+ * confirmation.
+ *
+ * The window opens when the device is unlocked or the user confirms their
+ * credential in the app. When neither has been seen since the process started,
+ * a key is probed, which costs no more than initializing a signature.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public class AuthWindow {
+
+    /**
+     * How long keys stay usable after the user confirms their credential.
+     */
+    public static final int VALIDITY_SECONDS = 5 * 60;
+
+    /**
+     * Signing this close to the end of the window is treated as too late, since
+     * the message still has to be built.
+     */
+    private static final long MARGIN_MILLIS = 10_000;
+
+    private static final List<Runnable[]> PENDING = new ArrayList<>();
+
+    /**
+     * When the credential was last confirmed, in {@link SystemClock#elapsedRealtime()},
+     * or -1 if not since the process started.
+     */
+    private static long confirmedAt = -1;
+    private static boolean confirming = false;
+
+    private static int saved = 0;
+    private static int failed = 0;
+
+    /**
+     * @param keyID A key to probe if the window's state isn't known.
+     * @return True if signing with the device's keys should succeed right now.
+     */
+    public static boolean isOpen(String keyID) {
+
+        if (Build.VERSION.SDK_INT < 23)
+            return true; // Older keys don't require user authentication.
+
+        synchronized (AuthWindow.class) {
+
+            if (confirmedAt >= 0 && SystemClock.elapsedRealtime() - confirmedAt <
+                    VALIDITY_SECONDS * 1000L - MARGIN_MILLIS)
+                return true;
+
+            if (confirming)
+                return false;
+
+        }
+
+        return U2F.keys().isUnlocked(keyID);
+
+    }
+
+    /**
+     * Puts work off until the user has confirmed their credential, asking them
+     * to if nobody has yet.
+     * @param retry   Run on {@link Workers#CRYPTO} once the credential is confirmed.
+     * @param abandon Run on {@link Workers#CRYPTO} if the user declines.
+     */
+    public static void defer(Runnable retry, Runnable abandon) {
+
+        boolean prompt;
+
+        synchronized (AuthWindow.class) {
+
+            PENDING.add(new Runnable[] {retry, abandon});
+            saved++;
+
+            prompt = !confirming;
+            confirming = true;
+
+            Log.i("MONITOR", "Deferred a signature until the credential is confirmed; " +
+                    saved + " sign attempts saved from failing, " + failed +
+                    " failed anyway, " + PENDING.size() + " waiting");
+
+        }
+
+        if (prompt) {
+            Intent intent = new Intent(U2F.CTX, ConfirmCredentialActivity.class);
+            intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            U2F.CTX.startActivity(intent);
+        }
+
+    }
+
+    /**
+     * Records that the device was just unlocked.
+     */
+    public static synchronized void userPresent() {
+        confirmedAt = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Records that the user confirmed their credential, and resumes all
+     * deferred work.
+     */
+    public static void confirmed() {
+        finish(true);
+    }
+
+    /**
+     * Records that the user declined to confirm their credential, and abandons
+     * all deferred work.
+     */
+    public static void declined() {
+        finish(false);
+    }
+
+    /**
+     * Records a signature which failed because the window had lapsed after all,
+     * so that the state is probed again next time.
+     */
+    public static synchronized void lapsed() {
+        confirmedAt = -1;
+        failed++;
+    }
+
+    private static void finish(boolean confirmed) {
+
+        List<Runnable[]> pending;
+
+        synchronized (AuthWindow.class) {
+
+            if (confirmed)
+                confirmedAt = SystemClock.elapsedRealtime();
+
+            confirming = false;
+            pending = new ArrayList<>(PENDING);
+            PENDING.clear();
+
+        }
+
+        for (Runnable[] task : pending)
+            Workers.CRYPTO.execute(task[confirmed ? 0 : 1]);
+
+    }
+
+}
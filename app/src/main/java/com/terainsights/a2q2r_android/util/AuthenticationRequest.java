@@ -0,0 +1,60 @@
+package com.terainsights.a2q2r_android.util;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * A request to authenticate with a server this device is registered to.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public class AuthenticationRequest extends U2FRequest {
+
+    /**
+     * The web-safe-Base64 ID of the server.
+     */
+    public final String appID;
+
+    /**
+     * The handle of the key the server expects to be used.
+     */
+    public final String keyID;
+
+    /**
+     * The server's counter for this key.
+     */
+    public final int counter;
+
+    public AuthenticationRequest(String appID, String challenge, String keyID, int counter) {
+        super(challenge);
+        this.appID = appID;
+        this.keyID = keyID;
+        this.counter = counter;
+    }
+
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeString(appID);
+        out.writeString(challenge);
+        out.writeString(keyID);
+        out.writeInt(counter);
+    }
+
+    public static final Parcelable.Creator<AuthenticationRequest> CREATOR =
+            new Parcelable.Creator<AuthenticationRequest>() {
+
+        @Override
+        public AuthenticationRequest createFromParcel(Parcel in) {
+            return new AuthenticationRequest(in.readString(), in.readString(), in.readString(),
+                                             in.readInt());
+        }
+
+        @Override
+        public AuthenticationRequest[] newArray(int size) {
+            return new AuthenticationRequest[size];
+        }
+
+    };
+
+}
@@ -0,0 +1,123 @@
+package com.terainsights.a2q2r_android.util;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reusable hashing and signing engines for the U2F hot path. Looking up a
+ * {@link MessageDigest} or {@link Signature} goes through the provider list
+ * every time, so each thread keeps its own instances instead, and the
+ * {@code appParam} (SHA-256 of the appURL) of every server is computed only
+ * once.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public class Crypto {
+
+    public static final String DIGEST_ALGORITHM = "SHA-256";
+    public static final String SIGNATURE_ALGORITHM = "SHA256withECDSA";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Past this many cached appParams the cache is simply emptied; a device
+     * is only ever registered with a handful of servers.
+     */
+    private static final int MAX_APP_PARAMS = 64;
+
+    private static final ThreadLocal<MessageDigest> SHA_256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance(DIGEST_ALGORITHM);
+            } catch (GeneralSecurityException e) {
+                throw new AssertionError(e); // Every Android device provides SHA-256.
+            }
+        }
+    };
+
+    /**
+     * Signature engines by the class of key they were last initialized with.
+     * Once an engine has settled on a provider for one kind of key, it can't
+     * necessarily be used with another, e.g. keystore and software keys.
+     */
+    private static final ThreadLocal<HashMap<Class<?>, Signature>> SIGNATURES =
+            new ThreadLocal<HashMap<Class<?>, Signature>>() {
+                @Override
+                protected HashMap<Class<?>, Signature> initialValue() {
+                    return new HashMap<>();
+                }
+            };
+
+    private static final ConcurrentHashMap<String, byte[]> APP_PARAMS =
+            new ConcurrentHashMap<>();
+
+    /**
+     * @return The SHA-256 hash of {@code data}.
+     */
+    public static byte[] sha256(byte[] data) {
+        return SHA_256.get().digest(data);
+    }
+
+    /**
+     * @param appURL A server's appURL.
+     * @return The U2F application parameter for the server, the SHA-256 hash of
+     *         its appURL. Shared between callers, so must not be modified.
+     */
+    public static byte[] appParam(String appURL) {
+
+        byte[] param = APP_PARAMS.get(appURL);
+
+        if (param == null) {
+
+            param = sha256(appURL.getBytes(UTF_8));
+
+            if (APP_PARAMS.size() >= MAX_APP_PARAMS)
+                APP_PARAMS.clear();
+
+            APP_PARAMS.put(appURL, param);
+
+        }
+
+        return param;
+
+    }
+
+    /**
+     * Caches an appParam computed earlier, e.g. one stored with its server.
+     */
+    static void rememberAppParam(String appURL, byte[] param) {
+
+        if (APP_PARAMS.size() >= MAX_APP_PARAMS)
+            APP_PARAMS.clear();
+
+        APP_PARAMS.putIfAbsent(appURL, param);
+
+    }
+
+    /**
+     * @param key The key about to be signed with.
+     * @return This thread's ECDSA engine for keys like {@code key}, which the
+     *         caller must initialize with {@code key} before use.
+     */
+    public static Signature signature(PrivateKey key) throws GeneralSecurityException {
+
+        HashMap<Class<?>, Signature> engines = SIGNATURES.get();
+        Signature sig = engines.get(key.getClass());
+
+        if (sig == null) {
+            sig = Signature.getInstance(SIGNATURE_ALGORITHM);
+            engines.put(key.getClass(), sig);
+        }
+
+        return sig;
+
+    }
+
+}
@@ -0,0 +1,169 @@
+package com.terainsights.a2q2r_android.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import okio.BufferedSink;
+
+/**
+ * A minimal streaming JSON writer which writes straight into an okio sink,
+ * e.g. an outgoing request body, without building an intermediate tree or
+ * String. Only objects are supported, since that's all U2F messages need.
+ * Unlike {@code org.json}, forward slashes are not escaped, so URLs come out
+ * verbatim.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public class JsonSink {
+
+    private static final int MAX_DEPTH = 8;
+
+    private final BufferedSink sink;
+    private final OutputStream stream;
+
+    /**
+     * Whether the object at each nesting level has had any members written yet.
+     */
+    private final boolean[] hasMembers = new boolean[MAX_DEPTH + 1];
+    private int depth = 0;
+
+    public JsonSink(BufferedSink sink) {
+        this.sink = sink;
+        this.stream = sink.outputStream();
+    }
+
+    public JsonSink beginObject() throws IOException {
+
+        if (depth == MAX_DEPTH)
+            throw new IllegalStateException("JSON nested too deeply.");
+
+        sink.writeByte('{');
+        hasMembers[++depth] = false;
+
+        return this;
+
+    }
+
+    public JsonSink endObject() throws IOException {
+
+        if (depth == 0)
+            throw new IllegalStateException("No object to end.");
+
+        sink.writeByte('}');
+        depth--;
+
+        return this;
+
+    }
+
+    /**
+     * Writes the name of the next object member. Must be followed by exactly one
+     * value or nested object.
+     */
+    public JsonSink name(String name) throws IOException {
+
+        if (hasMembers[depth])
+            sink.writeByte(',');
+
+        hasMembers[depth] = true;
+        string(name);
+        sink.writeByte(':');
+
+        return this;
+
+    }
+
+    public JsonSink value(String value) throws IOException {
+
+        if (value == null)
+            sink.writeUtf8("null");
+        else
+            string(value);
+
+        return this;
+
+    }
+
+    public JsonSink value(boolean value) throws IOException {
+        sink.writeUtf8(value ? "true" : "false");
+        return this;
+    }
+
+    public JsonSink value(long value) throws IOException {
+        sink.writeDecimalLong(value);
+        return this;
+    }
+
+    /**
+     * Writes bytes as a web-safe, unpadded Base64 string. The Base64 alphabet
+     * never needs escaping, so the encoded bytes go into the sink as-is.
+     */
+    public JsonSink valueBase64(byte[] data) throws IOException {
+
+        sink.writeByte('"');
+        WebSafeBase64.encode(data, stream);
+        sink.writeByte('"');
+
+        return this;
+
+    }
+
+    /**
+     * Writes already serialized JSON verbatim, as a whole document or value.
+     */
+    public JsonSink raw(String json) throws IOException {
+        sink.writeUtf8(json);
+        return this;
+    }
+
+    /**
+     * Writes a quoted, escaped string, copying runs of characters that need no
+     * escaping in one go.
+     */
+    private void string(String s) throws IOException {
+
+        sink.writeByte('"');
+
+        int run = 0;
+
+        for (int i = 0; i < s.length(); i++) {
+
+            char c = s.charAt(i);
+            String escape;
+
+            if (c == '"')
+                escape = "\\\"";
+            else if (c == '\\')
+                escape = "\\\\";
+            else if (c == '\n')
+                escape = "\\n";
+            else if (c == '\r')
+                escape = "\\r";
+            else if (c == '\t')
+                escape = "\\t";
+            else if (c == '\b')
+                escape = "\\b";
+            else if (c == '\f')
+                escape = "\\f";
+            else if (c < 0x20 || c == '\u2028' || c == '\u2029')
+                escape = String.format("\\u%04x", (int) c);
+            else
+                continue;
+
+            if (run < i)
+                sink.writeUtf8(s, run, i);
+
+            sink.writeUtf8(escape);
+            run = i + 1;
+
+        }
+
+        if (run < s.length())
+            sink.writeUtf8(s, run, s.length());
+
+        sink.writeByte('"');
+
+    }
+
+}
@@ -1,50 +1,498 @@
 package com.terainsights.a2q2r_android.util;
 
 import android.content.Context;
-import android.database.Cursor;
+import android.view.LayoutInflater;
 import android.view.View;
-import android.widget.ResourceCursorAdapter;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
 import android.widget.TextView;
 
 import com.terainsights.a2q2r_android.R;
 
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * Serves to translate key data from the internal U2F database into the
- * main activity's visual ListView.
+ * main activity's visual ListView. Keys are loaded a page at a time on
+ * {@link Workers#DISK} as the list scrolls, and only the most recently used
+ * {@link #MAX_PAGES} pages are kept in memory; rows whose page isn't loaded
+ * yet are shown blank until it is. At most {@link #MAX_IN_FLIGHT} pages load
+ * at once, newest request first, and pages the list has scrolled away from by
+ * the time their turn comes are skipped, so a fling doesn't queue a load for
+ * every page it passes. Changes to keys already loaded are patched in
+ * place, and a key that has just been used is moved to the head of the list
+ * the same way, while inserted or deleted keys reload the pages.
+ *
+ * While a search query is set, the list shows only the keys matching it,
+ * paged the same way and searched again as the query changes. Must only be
+ * used from the main thread.
  *
  * @author Sam Claus, Tera Insights, LLC
  * @version 8/19/16
  */
-public class KeyAdapter extends ResourceCursorAdapter {
+public class KeyAdapter extends BaseAdapter {
+
+    /**
+     * The number of keys loaded at once.
+     */
+    public static final int PAGE_SIZE = 50;
+
+    /**
+     * The number of pages kept in memory.
+     */
+    public static final int MAX_PAGES = 8;
+
+    /**
+     * How close to the end of its page a row has to be shown before the next
+     * page is loaded.
+     */
+    private static final int PREFETCH = PAGE_SIZE / 4;
+
+    /**
+     * The number of pages loading at once.
+     */
+    private static final int MAX_IN_FLIGHT = 2;
+
+    /**
+     * How many pages either side of the one on screen are still worth loading.
+     */
+    private static final int NEAR_PAGES = 1;
+
+    private final LayoutInflater inflater;
+    private final int layout;
+    private final KeyDatabase database;
+
+    /**
+     * Formats when each key was last used; reused across rows, which is safe
+     * on the main thread alone.
+     */
+    private final DateFormat dateFormat = new SimpleDateFormat("MM/dd");
+    private final DateFormat timeFormat = new SimpleDateFormat("H:mm");
+    private final Date lastUsed = new Date();
+
+    private int count = 0;
+
+    /**
+     * The search being shown, or null to show every key.
+     */
+    private String query = null;
+
+    /**
+     * Loaded pages by index, least recently used first.
+     */
+    private final LinkedHashMap<Integer, List<KeyDatabase.KeyRow>> pages =
+            new LinkedHashMap<Integer, List<KeyDatabase.KeyRow>>(MAX_PAGES + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer,
+                        List<KeyDatabase.KeyRow>> eldest) {
+                    return size() > MAX_PAGES;
+                }
+            };
+
+    /**
+     * The last key on each page seen so far, by the index of the page after it,
+     * from which that page can be loaded directly.
+     */
+    private final Map<Integer, KeyDatabase.KeyRow> anchors = new HashMap<>();
+
+    /**
+     * Pages being loaded, and pages waiting for a turn, most recently wanted last.
+     */
+    private final Set<Integer> loading = new HashSet<>();
+    private final ArrayDeque<Integer> wanted = new ArrayDeque<>();
+
+    /**
+     * The page of the row last drawn; read on {@link Workers#DISK} to skip loads
+     * which are no longer needed.
+     */
+    private volatile int visiblePage = 0;
+
+    /**
+     * Incremented whenever the pages are reloaded, so that loads started
+     * before then are discarded.
+     */
+    private volatile int generation = 0;
+
+    /**
+     * @param context  The context of the ListView to populate.
+     * @param layout   The ID of the ListView's row template.
+     * @param database The database to load keys from.
+     */
+    public KeyAdapter(Context context, int layout, KeyDatabase database) {
+        this.inflater = LayoutInflater.from(context);
+        this.layout = layout;
+        this.database = database;
+    }
+
+    /**
+     * Shows the keys matching a search, or every key again.
+     * @param query What the user typed, or an empty string to stop searching.
+     */
+    public void setQuery(String query) {
+
+        query = query.trim();
+        query = query.isEmpty() ? null : query;
+
+        if (query == null ? this.query == null : query.equals(this.query))
+            return;
+
+        this.query = query;
+        reload();
+
+    }
 
     /**
-     * Convenience constructor that doesn't auto refresh its cursor
-     * in the U2F database, to save performance.
-     * @param context The context of the ListView to populate.
-     * @param layout The ID of the ListView's row template.
+     * Drops every loaded page, then counts the keys and loads the first page,
+     * or runs the search if there is one.
      */
-    public KeyAdapter(Context context, int layout) {
-        super(context, layout, null, 0);
+    public void reload() {
+
+        final int gen = ++generation;
+        final String search = query;
+
+        pages.clear();
+        anchors.clear();
+        loading.clear();
+        wanted.clear();
+        loading.add(0);
+
+        Workers.DISK.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                // Searches typed since this one was queued make it moot.
+                if (gen != generation)
+                    return;
+
+                final List<KeyDatabase.KeyRow> first = search != null
+                        ? database.searchKeys(search, null, PAGE_SIZE)
+                        : database.getKeyPage(null, PAGE_SIZE);
+                final int total = search != null
+                        ? database.countSearchResults(search)
+                        : database.getKeyCount();
+
+                Workers.onMain(new Runnable() {
+                    @Override
+                    public void run() {
+
+                        if (gen != generation)
+                            return;
+
+                        count = total;
+                        loaded(0, first);
+                        pump();
+
+                    }
+                });
+
+            }
+        });
+
+    }
+
+    /**
+     * Applies changes published by the database. Updates are patched into the
+     * loaded pages where possible; anything else reloads the pages.
+     */
+    public void apply(List<KeyDatabase.KeyChange> changes) {
+
+        for (KeyDatabase.KeyChange change : changes) {
+            if (change.type != KeyDatabase.KeyChange.UPDATED || !patch(change.row)) {
+                reload();
+                return;
+            }
+        }
+
+        notifyDataSetChanged();
+
+    }
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return The key at the given position, or null if its page isn't loaded
+     *         yet, in which case it is requested.
+     */
+    @Override
+    public KeyDatabase.KeyRow getItem(int position) {
+
+        int page = position / PAGE_SIZE;
+        List<KeyDatabase.KeyRow> rows = pages.get(page);
+
+        if (rows == null) {
+            request(page);
+            return null;
+        }
+
+        int index = position % PAGE_SIZE;
+
+        if (index >= PAGE_SIZE - PREFETCH && (page + 1) * PAGE_SIZE < count)
+            request(page + 1);
+
+        return index < rows.size() ? rows.get(index) : null;
+
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
     }
 
     @Override
-    public void bindView(View view, Context context, Cursor cursor) {
+    public View getView(int position, View convertView, ViewGroup parent) {
+
+        View view = convertView != null
+                ? convertView
+                : inflater.inflate(layout, parent, false);
+
+        visiblePage = position / PAGE_SIZE;
+
+        KeyDatabase.KeyRow key = getItem(position);
+
+        TextView userID = (TextView) view.findViewById(R.id.user_id);
+        TextView appName = (TextView) view.findViewById(R.id.app_name);
+        TextView dateUsed = (TextView) view.findViewById(R.id.date_used);
+        TextView timeUsed = (TextView) view.findViewById(R.id.time_used);
+
+        if (key == null) {
+            userID.setText("");
+            appName.setText("");
+            dateUsed.setText("");
+            timeUsed.setText("");
+            return view;
+        }
+
+        lastUsed.setTime(key.lastUsed);
+
+        userID.setText(key.userID);
+        appName.setText(key.appName);
+        dateUsed.setText(dateFormat.format(lastUsed));
+        timeUsed.setText(timeFormat.format(lastUsed));
+
+        return view;
+
+    }
+
+    /**
+     * Asks for a page unless it's loaded or already on its way. It loads once
+     * fewer than {@link #MAX_IN_FLIGHT} pages are loading, if it's still near
+     * the screen by then.
+     */
+    private void request(int page) {
+
+        if (pages.containsKey(page) || loading.contains(page))
+            return;
+
+        wanted.remove(page);
+        wanted.addLast(page);
+
+        pump();
+
+    }
+
+    /**
+     * Starts loading the most recently wanted pages, as far as there is room,
+     * and forgets the ones the list has since scrolled away from.
+     */
+    private void pump() {
+
+        while (loading.size() < MAX_IN_FLIGHT && !wanted.isEmpty()) {
+
+            int page = wanted.removeLast();
+
+            if (isNear(page))
+                load(page);
+
+        }
+
+    }
+
+    /**
+     * Loads a page on {@link Workers#DISK}. Seeks from the end of the previous
+     * page if that has been seen, and otherwise loads by position. The load is
+     * skipped if the page is no longer near the screen once it gets its turn,
+     * and will be asked for again if it comes back into view.
+     */
+    private void load(final int page) {
+
+        loading.add(page);
+
+        final int gen = generation;
+        final String search = query;
+        final KeyDatabase.KeyRow anchor = anchors.get(page);
+
+        Workers.DISK.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                final List<KeyDatabase.KeyRow> rows;
+
+                if (gen != generation) {
+                    return;
+                } else if (!isNear(page)) {
+                    rows = null;
+                } else if (search != null) {
+                    rows = anchor != null
+                            ? database.searchKeys(search, anchor, PAGE_SIZE)
+                            : database.searchKeys(search, page * PAGE_SIZE, PAGE_SIZE);
+                } else {
+                    rows = anchor != null
+                            ? database.getKeyPage(anchor, PAGE_SIZE)
+                            : database.getKeyPage(page * PAGE_SIZE, PAGE_SIZE);
+                }
+
+                Workers.onMain(new Runnable() {
+                    @Override
+                    public void run() {
 
-        String userID = cursor.getString(cursor.getColumnIndex("userID"));
-        String appName = cursor.getString(cursor.getColumnIndex("appName"));
-        String dateTime = cursor.getString(cursor.getColumnIndex("lastUsed"));
+                        if (gen != generation)
+                            return;
 
-        String date = dateTime.split(" ")[0];
-        String time = dateTime.split(" ")[1];
-        date = (date.startsWith("0")) ? date.substring(1) : date;
-        time = (time.startsWith("0")) ? time.substring(1) : time;
+                        if (rows != null)
+                            loaded(page, rows);
+                        else
+                            loading.remove(page);
 
-        ((TextView) view.findViewById(R.id.user_id)).setText(userID);
-        ((TextView) view.findViewById(R.id.app_name)).setText(appName);
-        ((TextView) view.findViewById(R.id.date_used)).setText(
-                date.substring(date.indexOf('/') + 1));
-        ((TextView) view.findViewById(R.id.time_used)).setText(time);
+                        pump();
 
+                    }
+                });
+
+            }
+        });
+
+    }
+
+    private boolean isNear(int page) {
+        return Math.abs(page - visiblePage) <= NEAR_PAGES;
+    }
+
+    private void loaded(int page, List<KeyDatabase.KeyRow> rows) {
+
+        loading.remove(page);
+        pages.put(page, rows);
+
+        if (rows.size() == PAGE_SIZE)
+            anchors.put(page + 1, rows.get(PAGE_SIZE - 1));
+
+        notifyDataSetChanged();
+
+    }
+
+    /**
+     * Applies an updated key to the loaded pages. Searches are ordered by
+     * registration, so there the key keeps its place. Otherwise it only moves
+     * when used, and since {@code lastUsed} only ever moves forward to the
+     * current time, to the head of the list. Every page before the one it
+     * came from then shifts down by one row: pages whose incoming row is
+     * known are shifted in place, and the rest are dropped and loaded again
+     * when shown, as are the anchors that can no longer be worked out.
+     * @return False if the key moved anywhere else, or a page it would shift
+     *         is still loading, in which case the pages have to be reloaded.
+     */
+    private boolean patch(KeyDatabase.KeyRow row) {
+
+        int page = -1;
+        int index = -1;
+        KeyDatabase.KeyRow old = null;
+
+        // A copy, so that looking pages up doesn't count as using them.
+        Map<Integer, List<KeyDatabase.KeyRow>> loaded = new HashMap<>(pages);
+
+        for (Map.Entry<Integer, List<KeyDatabase.KeyRow>> entry : loaded.entrySet()) {
+
+            List<KeyDatabase.KeyRow> rows = entry.getValue();
+
+            for (int i = 0; old == null && i < rows.size(); i++) {
+                if (rows.get(i).keyID.equals(row.keyID)) {
+                    page = entry.getKey();
+                    index = i;
+                    old = rows.get(i);
+                }
+            }
+
+        }
+
+        List<KeyDatabase.KeyRow> first = loaded.get(0);
+        KeyDatabase.KeyRow head = first != null && !first.isEmpty() ? first.get(0) : null;
+
+        boolean stays = query != null ||
+                (old != null ? old.lastUsed == row.lastUsed || old == head
+                             : head != null && !precedes(row, head));
+
+        if (stays) {
+            if (old != null)
+                loaded.get(page).set(index, row);
+            return true;
+        }
+
+        if (old != null && (row.lastUsed < old.lastUsed || head != null && !precedes(row, head)))
+            return false;
+
+        // Without the key's old place, every page up to the first one that
+        // isn't loaded is known to be before it, and the rest might be.
+        int end = old != null ? page : (count - 1) / PAGE_SIZE;
+
+        for (int p : loading) {
+            if (p <= end)
+                return false;
+        }
+
+        // The row moving onto the front of each page in turn, or null once unknown.
+        KeyDatabase.KeyRow carry = row;
+
+        for (int k = 0; k <= end; k++) {
+
+            List<KeyDatabase.KeyRow> rows = loaded.get(k);
+
+            if (rows == null || carry == null) {
+                pages.remove(k);
+                anchors.remove(k + 1);
+                carry = null;
+                continue;
+            }
+
+            KeyDatabase.KeyRow incoming = carry;
+
+            if (k == page)
+                rows.remove(index);
+            else if (rows.size() == PAGE_SIZE)
+                carry = rows.remove(PAGE_SIZE - 1);
+            else
+                return false;
+
+            rows.add(0, incoming);
+
+            if (rows.size() == PAGE_SIZE)
+                anchors.put(k + 1, rows.get(PAGE_SIZE - 1));
+
+        }
+
+        return true;
+
+    }
+
+    /**
+     * @return True if {@code a} comes before {@code b} in the key list, which
+     *         is ordered by {@code lastUsed} and then {@code keyID}, both
+     *         descending.
+     */
+    private static boolean precedes(KeyDatabase.KeyRow a, KeyDatabase.KeyRow b) {
+        return a.lastUsed != b.lastUsed
+                ? a.lastUsed > b.lastUsed
+                : a.keyID.compareTo(b.keyID) > 0;
     }
 
-}
\ No newline at end of file
+}
@@ -1,17 +1,40 @@
 package com.terainsights.a2q2r_android.util;
 
+import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
 
 import java.io.File;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.TimeZone;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * A wrapper for {@link SQLiteDatabase}, containing convenience methods for
- * querying a U2F-compliant database.
+ * querying a U2F-compliant database. The frequent queries are compiled once
+ * and reused with bound arguments; a compiled statement can only be used by
+ * one thread at a time, so each is locked while it's bound and run.
+ *
+ * New keys, new servers and counter updates are written behind: they're queued,
+ * and a single writer on {@link Workers#DISK} applies everything queued so far
+ * in one transaction, followed by one refresh of the key list. Until a write
+ * has been committed, the lookups here answer as if it already had been, so
+ * e.g. a counter check right after an authentication sees the new counter.
+ *
+ * Changes to registered keys are published row by row to {@link KeyListener}s,
+ * so that a view of the keys can patch just the affected rows.
+ *
+ * The schema's version is kept in the database's {@code user_version}, and an
+ * older schema is migrated to {@link #SCHEMA_VERSION} when the database is
+ * opened.
  *
  * @author Sam Claus, Tera Insights, LLC
  * @version 8/19/16
@@ -22,28 +45,386 @@ public class KeyDatabase {
      * Just a simple Tuple.
      */
     public static class ServerInfo {
+        public String appID;
+        public String appName;
+        public String appURL;
+    }
+
+    /**
+     * A signed response waiting in the outbox to be delivered to its server.
+     */
+    public static class OutboxEntry {
+        public long   id;
+        public String route;
+        public String appURL;
+        public String body;
+        public String state;
+        public long   deadline;
+        public int    attempts;
+        public long   created;
+    }
+
+    /**
+     * A registered key, with its server's info, as shown in the key list.
+     */
+    public static class KeyRow {
+        public String keyID;
+        public String userID;
         public String appName;
         public String appURL;
+        public long   lastUsed;
+        public int    counter;
+        public int    useCount;
+
+        /**
+         * The key's rowid, which is also its docid in the search index.
+         */
+        public long   rowid;
+    }
+
+    /**
+     * A change to a single registered key.
+     */
+    public static class KeyChange {
+
+        public static final int INSERTED = 0;
+        public static final int UPDATED  = 1;
+        public static final int DELETED  = 2;
+
+        /**
+         * One of {@link #INSERTED}, {@link #UPDATED} or {@link #DELETED}.
+         */
+        public final int type;
+        public final String keyID;
+
+        /**
+         * The key as it is now, or null if it was deleted.
+         */
+        public final KeyRow row;
+
+        KeyChange(int type, String keyID, KeyRow row) {
+            this.type = type;
+            this.keyID = keyID;
+            this.row = row;
+        }
+
+    }
+
+    /**
+     * Notified of changes to the registered keys.
+     */
+    public interface KeyListener {
+
+        /**
+         * Called on {@link Workers#DISK} after each batch of changes has been
+         * committed, with at most one change per key, in the order they were made.
+         */
+        void onKeysChanged(List<KeyChange> changes);
+
     }
 
+    private final CopyOnWriteArrayList<KeyListener> listeners = new CopyOnWriteArrayList<>();
+
+    /*
+     * Queries on paths that run for every request or every page, kept here so
+     * that KeyDatabaseTest can check their query plans.
+     */
+
+    static final String COUNTER_QUERY = "SELECT counter FROM keys WHERE keyID = ?";
+
+    static final String KEY_EXISTS_QUERY =
+            "SELECT EXISTS (SELECT 1 FROM keys WHERE keyID = ?)";
+
+    static final String SERVER_EXISTS_QUERY =
+            "SELECT EXISTS (SELECT 1 FROM servers WHERE appID = ?)";
+
+    static final String USER_KEY_EXISTS_QUERY =
+            "SELECT EXISTS (SELECT 1 FROM keys WHERE appID = ? AND userID = ?)";
+
+    static final String SERVER_INFO_QUERY =
+            "SELECT appURL, appName, appParam FROM servers WHERE appID = ?";
+
+    /**
+     * Every key is saved after its server, so the keys can be counted alone,
+     * which SQLite does from its smallest index without a join per key.
+     */
+    static final String KEY_COUNT_QUERY = "SELECT COUNT(*) FROM keys";
+
+    static final String KEY_ROW_QUERY =
+            "SELECT keyID, userID, appName, appURL, lastUsed, counter, useCount, keys.rowid " +
+            "FROM keys, servers " +
+            "WHERE keys.appID = servers.appID ";
+
+    /**
+     * Narrows {@link #KEY_ROW_QUERY} to the keys after a given one, by its
+     * lastUsed twice and then its keyID. Written so that the range on
+     * lastUsed can seek the index, which an OR of the two cases can't.
+     */
+    static final String KEY_ROW_AFTER = "AND lastUsed <= ? AND (lastUsed < ? OR keyID < ?) ";
+
+    /**
+     * Matches keys by prefixes of the words in their user and server, newest
+     * registrations first. Ordering by docid lets the full-text index return
+     * the first matches without sorting all of them, and pages continue from
+     * the last docid seen, which the index also seeks to directly.
+     */
+    static final String SEARCH_QUERY =
+            "SELECT keys.keyID, keys.userID, servers.appName, servers.appURL, lastUsed, counter, " +
+            "useCount, keys.rowid " +
+            "FROM keys_search, keys, servers " +
+            "WHERE keys_search MATCH ? " +
+            "AND keys.rowid = keys_search.docid " +
+            "AND servers.appID = keys.appID ";
+
+    static final String SEARCH_AFTER = "AND keys_search.docid < ? ";
+
+    static final String SEARCH_ORDER = "ORDER BY keys_search.docid DESC LIMIT ";
+
+    /**
+     * Every indexed key has a server, so the index alone can be counted.
+     */
+    static final String SEARCH_COUNT_QUERY =
+            "SELECT COUNT(*) FROM keys_search WHERE keys_search MATCH ?";
+
+    static final String KEY_ROW_ORDER = "ORDER BY lastUsed DESC, keyID DESC LIMIT ";
+
+    private int pageLoads = 0;
+
     /**
-     * Feeds key data into the main activity's ListView.
+     * The version of the schema created and used by this class. Version 1 is
+     * the schema from before versioning; version 2 stores {@code lastUsed} in
+     * epoch millis, counts each key's uses, and stores each server's appParam.
      */
-    public static KeyAdapter KEY_ADAPTER;
+    public static final int SCHEMA_VERSION = 2;
 
     /**
      * The core database being manipulated with key data.
      */
     private SQLiteDatabase database;
 
+    /*
+     * Set by open(); counting down the latch publishes them to other threads.
+     */
+    private SQLiteStatement selectCounter;
+    private SQLiteStatement advanceCounter;
+    private SQLiteStatement recordUse;
+    private SQLiteStatement keyExists;
+    private SQLiteStatement serverExists;
+    private SQLiteStatement userKeyExists;
+    private SQLiteStatement insertKey;
+    private SQLiteStatement insertServer;
+
+    private final File file;
+    private final CountDownLatch opened = new CountDownLatch(1);
+    private volatile RuntimeException openFailure = null;
+
+    /**
+     * A queued change to the keys or servers tables.
+     */
+    private static abstract class Write {
+
+        /**
+         * The key this write changes, or null if it doesn't change a key.
+         */
+        final String keyID;
+
+        /**
+         * How it changes the key, as a {@link KeyChange} type.
+         */
+        final int change;
+
+        Write(String keyID, int change) {
+            this.keyID = keyID;
+            this.change = change;
+        }
+
+        /**
+         * Applies the change; called on the writer inside its transaction.
+         * @return False if it turned out to change nothing.
+         */
+        abstract boolean apply();
+
+        /**
+         * Called once the transaction the change was part of has ended, after
+         * which lookups no longer need to account for it.
+         */
+        void committed() {}
+
+    }
+
+    private final Object writeLock = new Object();
+    private List<Write> pendingWrites = new ArrayList<>();
+    private boolean flushScheduled = false;
+
+    /**
+     * How many writes have been queued, and how many of those have been
+     * committed or dropped, for {@link #awaitWrites()}.
+     */
+    private long writesQueued = 0;
+    private long writesDone = 0;
+
+    /**
+     * Queued writes, by what they will have changed once committed.
+     */
+    private final ConcurrentHashMap<String, Integer> pendingCounters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String[]> pendingKeys = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ServerInfo> pendingServers = new ConcurrentHashMap<>();
+
     /**
-     * Opens a database from the given file or creates it, and then ensures that the
-     * database has the necessary 2Q2R tables.
+     * The highest counter signed with each key since the process started,
+     * whether or not its server has accepted it yet.
+     */
+    private final ConcurrentHashMap<String, Integer> signedCounters = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a handle on the database in the given file, which isn't usable
+     * until {@link #open()} has run. Only one should exist per process; see
+     * {@link U2F#DATABASE}.
+     *
      * @param databaseFile The file to create or open the database from.
      */
     public KeyDatabase(File databaseFile) {
+        this.file = databaseFile;
+    }
+
+    /**
+     * Opens the database or creates it, and then ensures that the database has
+     * the necessary 2Q2R tables, migrating an older schema if needed. That can
+     * take a while on a large database, so the app runs this on
+     * {@link Workers#DISK} at startup, and every method which reads or writes
+     * waits for it to finish. Does nothing if already run.
+     *
+     * The database is opened in write-ahead logging mode, so that reads on one
+     * thread don't wait for writes on another, with commits synced to disk at
+     * checkpoints rather than every transaction. A crash can then lose the last
+     * commits, but never corrupt the database.
+     *
+     * @throws RuntimeException If the database can't be opened or migrated,
+     *                          which is also thrown to anything waiting on it.
+     */
+    public synchronized void open() {
+
+        if (opened.getCount() == 0)
+            return;
+
+        try {
+            openDatabase();
+        } catch (RuntimeException e) {
+            openFailure = e;
+            throw e;
+        } finally {
+            opened.countDown();
+        }
+
+    }
+
+    private void openDatabase() {
+
+        long start = System.nanoTime();
+
+        this.database = SQLiteDatabase.openDatabase(file.getPath(), null,
+                SQLiteDatabase.CREATE_IF_NECESSARY | SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING);
+        this.database.execSQL("PRAGMA synchronous = NORMAL");
+
+        upgrade();
+
+        selectCounter  = database.compileStatement(COUNTER_QUERY);
+        advanceCounter = database.compileStatement("UPDATE keys " +
+                                                   "SET counter = ? " +
+                                                   "WHERE keyID = ? AND counter < ?");
+        recordUse      = database.compileStatement("UPDATE keys " +
+                                                   "SET counter = ?, lastUsed = ?, " +
+                                                   "useCount = useCount + 1 " +
+                                                   "WHERE keyID = ? AND counter < ?");
+        keyExists      = database.compileStatement(KEY_EXISTS_QUERY);
+        serverExists   = database.compileStatement(SERVER_EXISTS_QUERY);
+        userKeyExists  = database.compileStatement(USER_KEY_EXISTS_QUERY);
+        insertKey      = database.compileStatement("INSERT INTO keys (keyID, appID, counter, " +
+                                                   "userID, lastUsed, useCount) " +
+                                                   "VALUES (?, ?, 0, ?, ?, 0)");
+        insertServer   = database.compileStatement("INSERT OR IGNORE INTO servers (appID, " +
+                                                   "appURL, appName, appParam) " +
+                                                   "VALUES (?, ?, ?, ?)");
+
+        Log.i("MONITOR", "Database open took " + Keys.millisSince(start) + " ms");
+
+    }
+
+    /**
+     * Blocks until {@link #open()} has finished, which only costs a volatile
+     * read once it has. Waiting on the main thread is logged, since nothing
+     * there should touch the database.
+     * @throws IllegalStateException If the database failed to open.
+     */
+    private void awaitOpen() {
+
+        if (opened.getCount() > 0) {
+
+            long start = System.nanoTime();
+            boolean interrupted = false;
+
+            while (true) {
+                try {
+                    opened.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+
+            if (interrupted)
+                Thread.currentThread().interrupt();
+
+            Log.i("MONITOR", "Waited " + Keys.millisSince(start) + " ms on " +
+                    Thread.currentThread().getName() + " for the database to open");
+
+        }
+
+        if (openFailure != null)
+            throw new IllegalStateException("The key database failed to open.", openFailure);
+
+    }
+
+    /**
+     * Brings the schema up to {@link #SCHEMA_VERSION}, applying each migration
+     * in turn, all in one transaction. Version 0 is either a new database or one
+     * from before versioning, both of which become version 1 by creating
+     * whatever is missing.
+     */
+    private void upgrade() {
+
+        int version = database.getVersion();
+
+        if (version >= SCHEMA_VERSION)
+            return;
+
+        long start = System.nanoTime();
+
+        database.beginTransaction();
+
+        try {
+
+            for (int to = version + 1; to <= SCHEMA_VERSION; to++) {
+                switch (to) {
+                    case 1: createVersion1(); break;
+                    case 2: migrateToVersion2(); break;
+                }
+            }
+
+            database.setVersion(SCHEMA_VERSION);
+            database.setTransactionSuccessful();
+
+        } finally {
+            database.endTransaction();
+        }
+
+        Log.i("MONITOR", "Migrated the schema from version " + version + " to " +
+                SCHEMA_VERSION + " in " + Keys.millisSince(start) + " ms");
+
+    }
+
+    private void createVersion1() {
 
-        this.database = SQLiteDatabase.openOrCreateDatabase(databaseFile, null);
         this.database.execSQL("CREATE TABLE IF NOT EXISTS keys(" +
                               "keyID    TEXT PRIMARY KEY NOT NULL," +
                               "appID    TEXT NOT NULL," +
@@ -54,20 +435,271 @@ public class KeyDatabase {
                               "appID   TEXT PRIMARY KEY NOT NULL," +
                               "appURL TEXT NOT NULL," +
                               "appName TEXT NOT NULL)");
+        this.database.execSQL("CREATE TABLE IF NOT EXISTS outbox(" +
+                              "id          INTEGER PRIMARY KEY AUTOINCREMENT," +
+                              "route       TEXT NOT NULL," +
+                              "appURL      TEXT NOT NULL," +
+                              "body        TEXT NOT NULL," +
+                              "state       TEXT," +
+                              "deadline    INT  NOT NULL," +
+                              "attempts    INT  NOT NULL," +
+                              "nextAttempt INT  NOT NULL," +
+                              "created     INT  NOT NULL)");
+
+        // Duplicate-registration checks and key list pages, respectively.
+        this.database.execSQL("CREATE INDEX IF NOT EXISTS keys_app_user ON keys(appID, userID)");
+        this.database.execSQL("CREATE INDEX IF NOT EXISTS keys_recent ON keys(lastUsed, keyID)");
+
+        createSearchIndex();
+
+    }
+
+    /**
+     * Converts {@code lastUsed} from local "yyyy/MM/dd HH:mm" text to epoch
+     * millis, adds {@code useCount} to keys and the precomputed {@code appParam}
+     * to servers.
+     */
+    private void migrateToVersion2() {
+
+        // SQLite can't change a column's type, so the table is rebuilt. Rowids
+        // are kept, since the search index refers to them.
+        database.execSQL("CREATE TABLE keys_v2(" +
+                         "keyID    TEXT PRIMARY KEY NOT NULL," +
+                         "appID    TEXT NOT NULL," +
+                         "counter  INT  NOT NULL," +
+                         "userID   TEXT NOT NULL," +
+                         "lastUsed INT  NOT NULL," +
+                         "useCount INT  NOT NULL)");
+        database.execSQL("INSERT INTO keys_v2 (rowid, keyID, appID, counter, userID, lastUsed, " +
+                         "useCount) " +
+                         "SELECT rowid, keyID, appID, counter, userID, " +
+                         "COALESCE(CAST(strftime('%s', replace(lastUsed, '/', '-'), 'utc') " +
+                         "AS INTEGER) * 1000, 0), 0 " +
+                         "FROM keys");
+        database.execSQL("DROP TABLE keys");
+        database.execSQL("ALTER TABLE keys_v2 RENAME TO keys");
+
+        // Dropped along with the old table.
+        database.execSQL("CREATE INDEX keys_app_user ON keys(appID, userID)");
+        database.execSQL("CREATE INDEX keys_recent ON keys(lastUsed, keyID)");
+        createSearchTriggers();
+
+        database.execSQL("ALTER TABLE servers ADD COLUMN appParam BLOB");
+
+        SQLiteStatement setParam = database.compileStatement("UPDATE servers SET appParam = ? " +
+                                                             "WHERE appID = ?");
+        Cursor cursor = database.rawQuery("SELECT appID, appURL FROM servers", null);
+
+        while (cursor.moveToNext()) {
+            setParam.bindBlob(1, Crypto.appParam(cursor.getString(1)));
+            setParam.bindString(2, cursor.getString(0));
+            setParam.executeUpdateDelete();
+        }
+
+        cursor.close();
+        setParam.close();
+
+    }
+
+    /**
+     * Starts notifying the given listener of changes to the keys.
+     */
+    public void addKeyListener(KeyListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeKeyListener(KeyListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return The number of registered keys, i.e. the length of the key list.
+     */
+    public int getKeyCount() {
+
+        awaitOpen();
+
+        Cursor cursor = database.rawQuery(KEY_COUNT_QUERY, null);
+        cursor.moveToFirst();
+        int count = cursor.getInt(0);
+        cursor.close();
+
+        return count;
+
+    }
+
+    /**
+     * Loads a page of the key list, which is ordered by most recently used
+     * first, then by key handle. Seeks straight to the page using the index,
+     * however deep it is. Changes made after this returns are published to
+     * the {@link KeyListener}s.
+     * @param after The last key on the previous page, or null for the first page.
+     * @param limit The maximum number of keys to load.
+     */
+    public List<KeyRow> getKeyPage(KeyRow after, int limit) {
+
+        if (after == null)
+            return loadKeys(KEY_ROW_QUERY + KEY_ROW_ORDER + limit, null);
+
+        String lastUsed = Long.toString(after.lastUsed);
+
+        return loadKeys(KEY_ROW_QUERY + KEY_ROW_AFTER + KEY_ROW_ORDER + limit,
+                        new String[] { lastUsed, lastUsed, after.keyID });
+
+    }
+
+    /**
+     * Finds the keys whose user ID, server name or server URL contain words
+     * starting with each word of the query, e.g. "sam ter" matches
+     * "sam@terainsights.com". Newest registrations come first.
+     * @param query What the user typed.
+     * @param after The last match on the previous page, or null for the first page.
+     * @param limit The maximum number of keys to return.
+     */
+    public List<KeyRow> searchKeys(String query, KeyRow after, int limit) {
+
+        String match = match(query);
+
+        if (match == null)
+            return new ArrayList<>();
+
+        if (after == null)
+            return loadKeys(SEARCH_QUERY + SEARCH_ORDER + limit, new String[] { match });
+
+        return loadKeys(SEARCH_QUERY + SEARCH_AFTER + SEARCH_ORDER + limit,
+                        new String[] { match, Long.toString(after.rowid) });
+
+    }
+
+    /**
+     * Loads a page of search results by position, for when the previous page
+     * isn't known.
+     * @param query  What the user typed.
+     * @param offset The position of the first match to load.
+     * @param limit  The maximum number of keys to load.
+     */
+    public List<KeyRow> searchKeys(String query, int offset, int limit) {
+
+        String match = match(query);
+
+        if (match == null)
+            return new ArrayList<>();
+
+        return loadKeys(SEARCH_QUERY + SEARCH_ORDER + limit + " OFFSET " + offset,
+                        new String[] { match });
 
     }
 
     /**
-     * Updates the static U2F KeyAdapter with the latest key data.
+     * @param query What the user typed.
+     * @return The number of keys {@link #searchKeys} can return for it.
      */
-    public void refreshKeyInfo() {
+    public int countSearchResults(String query) {
+
+        String match = match(query);
+
+        if (match == null)
+            return 0;
+
+        awaitOpen();
+
+        Cursor cursor = database.rawQuery(SEARCH_COUNT_QUERY, new String[] { match });
+        cursor.moveToFirst();
+        int count = cursor.getInt(0);
+        cursor.close();
+
+        return count;
+
+    }
+
+    /**
+     * Turns a query into a full-text match on word prefixes. Only words go
+     * through, so the user can't type FTS operators.
+     * @return The match expression, or null if the query has no words.
+     */
+    private static String match(String query) {
+
+        StringBuilder match = new StringBuilder();
+
+        for (String word : query.split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty())
+                match.append(word).append("* ");
+        }
+
+        return match.length() == 0 ? null : match.toString().trim();
+
+    }
+
+    /**
+     * Loads a page of the key list by position, for when the previous page
+     * isn't known. Slower than {@link #getKeyPage(KeyRow, int)} the deeper the
+     * page is.
+     * @param offset The position of the first key to load.
+     * @param limit  The maximum number of keys to load.
+     */
+    public List<KeyRow> getKeyPage(int offset, int limit) {
+        return loadKeys(KEY_ROW_QUERY + KEY_ROW_ORDER + limit + " OFFSET " + offset, null);
+    }
+
+    private List<KeyRow> loadKeys(String query, String[] args) {
+
+        awaitOpen();
+
+        long start = System.nanoTime();
+        List<KeyRow> keys = new ArrayList<>();
+
+        Cursor cursor = database.rawQuery(query, args);
+
+        while (cursor.moveToNext())
+            keys.add(keyRow(cursor));
+
+        cursor.close();
+
+        Log.i("MONITOR", "Loaded a page of " + keys.size() + " keys in " +
+                Keys.millisSince(start) + " ms; " + (++pageLoads) + " pages loaded so far");
+
+        return keys;
+
+    }
+
+    /**
+     * @return A single registered key, or null if there's no such key.
+     */
+    private KeyRow getKey(String keyID) {
+
+        Cursor cursor = database.rawQuery(KEY_ROW_QUERY + "AND keyID = ?",
+                                          new String[] { keyID });
+
+        KeyRow row = cursor.moveToFirst() ? keyRow(cursor) : null;
+        cursor.close();
+
+        return row;
+
+    }
+
+    private static KeyRow keyRow(Cursor cursor) {
+
+        KeyRow row = new KeyRow();
+        row.keyID = cursor.getString(0);
+        row.userID = cursor.getString(1);
+        row.appName = cursor.getString(2);
+        row.appURL = cursor.getString(3);
+        row.lastUsed = cursor.getLong(4);
+        row.counter = cursor.getInt(5);
+        row.useCount = cursor.getInt(6);
+        row.rowid = cursor.getLong(7);
+
+        return row;
 
-        Cursor c = database.rawQuery("SELECT keyID _id, userID, appName, appURL, lastUsed, counter " +
-                                 "FROM keys, servers " +
-                                 "WHERE keys.appID = servers.appID " +
-                                 "ORDER BY lastUsed DESC", null);
+    }
+
+    private void publish(List<KeyChange> changes) {
 
-        KEY_ADAPTER.changeCursor(c);
+        if (changes.isEmpty())
+            return;
+
+        for (KeyListener listener : listeners)
+            listener.onKeysChanged(changes);
 
     }
 
@@ -75,38 +707,134 @@ public class KeyDatabase {
      * Retrieves the counter for the given registration key.
      * @param keyID The handle of the key in use.
      * @return The counter (pre-increment) for the given key, or -1 if no such
-     *         counter was found.
+     *         counter was found. Counters which have been signed with but not
+     *         yet accepted by the server count as well.
      */
     public int getCounter(String keyID) {
 
-        Cursor cursor = database.rawQuery("SELECT counter " +
-                                          "FROM keys " +
-                                          "WHERE keyID = '" + keyID + "'", null);
+        awaitOpen();
+
+        int counter;
+
+        synchronized (selectCounter) {
+
+            selectCounter.bindString(1, keyID);
+
+            try {
+                counter = (int) selectCounter.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                counter = pendingKeys.containsKey(keyID) ? 0 : -1;
+            }
 
-        if (!cursor.moveToFirst()) {
-            cursor.close();
-            return -1;
         }
 
-        int counter = cursor.getInt(cursor.getColumnIndex("counter"));
-        cursor.close();
+        Integer pending = pendingCounters.get(keyID);
+        Integer signed = signedCounters.get(keyID);
+
+        if (pending != null && pending > counter)
+            counter = pending;
+
+        return signed != null && signed > counter ? signed : counter;
+
+    }
 
-        return counter;
+    /**
+     * Records that a counter has been signed with a key. From then on
+     * {@link #getCounter(String)} reports at least that counter, so that no other
+     * flow signs it, or an older one, while the server has yet to answer. Must
+     * be called while holding the key's lock from {@link KeyLocks}, between
+     * checking the counter and releasing the lock.
+     *
+     * @param keyID   The key that signed.
+     * @param counter The counter that was signed.
+     */
+    public void reserveCounter(String keyID, int counter) {
+
+        Integer signed = signedCounters.get(keyID);
+
+        if (signed == null || signed < counter)
+            signedCounters.put(keyID, counter);
+
+    }
 
+    /**
+     * Moves the counter for a given key forward without counting it as a use,
+     * e.g. after the server has accepted the user declining an authentication.
+     * The comparison and the write are a single statement, so concurrent
+     * updates can never move a counter backwards. Written behind.
+     *
+     * @param keyID   The key whose request was answered.
+     * @param counter The counter the server sent with the request.
+     */
+    public void advanceCounter(final String keyID, final int counter) {
+        advance(keyID, counter, false);
     }
 
     /**
-     * Increments the counter for a given key. This should be called after
-     * a successful authentication request to the target 2Q2R server.
+     * Moves the counter for a given key forward, and records the key as used
+     * now. This should be called after a successful authentication request to
+     * the target 2Q2R server. Like {@link #advanceCounter}, never moves a
+     * counter backwards, and is written behind.
      *
-     * @param keyID The key to
+     * @param keyID   The key that was used.
+     * @param counter The counter the server sent with the authentication.
      */
-    public void setCounter(String keyID, String counter) {
+    public void recordUse(final String keyID, final int counter) {
+        advance(keyID, counter, true);
+    }
+
+    private void advance(final String keyID, final int counter, final boolean used) {
+
+        final long now = System.currentTimeMillis();
+
+        while (true) {
+
+            Integer pending = pendingCounters.putIfAbsent(keyID, counter);
+
+            if (pending == null || pending >= counter ||
+                    pendingCounters.replace(keyID, pending, counter))
+                break;
+
+        }
+
+        enqueue(new Write(keyID, KeyChange.UPDATED) {
+
+            @Override
+            boolean apply() {
+
+                boolean advanced;
 
-        database.execSQL("UPDATE keys SET counter = " + counter +
-                " WHERE keyID = '" + keyID + "'");
+                if (used) {
+                    synchronized (recordUse) {
+                        recordUse.bindLong(1, counter);
+                        recordUse.bindLong(2, now);
+                        recordUse.bindString(3, keyID);
+                        recordUse.bindLong(4, counter);
+                        advanced = recordUse.executeUpdateDelete() > 0;
+                    }
+                } else {
+                    synchronized (advanceCounter) {
+                        advanceCounter.bindLong(1, counter);
+                        advanceCounter.bindString(2, keyID);
+                        advanceCounter.bindLong(3, counter);
+                        advanced = advanceCounter.executeUpdateDelete() > 0;
+                    }
+                }
 
-        refreshKeyInfo();
+                if (!advanced)
+                    Log.i("MONITOR", "Kept the newer counter for key " + keyID + " over " +
+                            counter);
+
+                return advanced;
+
+            }
+
+            @Override
+            void committed() {
+                pendingCounters.remove(keyID, counter);
+            }
+
+        });
 
     }
 
@@ -119,18 +847,29 @@ public class KeyDatabase {
      */
     public ServerInfo getServerInfo(String appID) {
 
+        ServerInfo pending = pendingServers.get(appID);
+
+        if (pending != null)
+            return pending;
+
+        awaitOpen();
+
         ServerInfo result = new ServerInfo();
 
-        Cursor cursor = database.rawQuery("SELECT appURL, appName " +
-                                          "FROM servers " +
-                                          "WHERE appID = '" + appID + "'", null);
+        Cursor cursor = database.rawQuery(SERVER_INFO_QUERY, new String[] { appID });
 
-        if (!cursor.moveToFirst())
+        if (!cursor.moveToFirst()) {
+            cursor.close();
             return null;
+        }
 
+        result.appID = appID;
         result.appURL = cursor.getString(cursor.getColumnIndex("appURL"));
         result.appName = cursor.getString(cursor.getColumnIndex("appName"));
 
+        if (!cursor.isNull(2))
+            Crypto.rememberAppParam(result.appURL, cursor.getBlob(2));
+
         cursor.close();
 
         return result;
@@ -141,40 +880,75 @@ public class KeyDatabase {
      * Appends key data for a new registration to the database, and
      * notifies all key registration listeners. Should NOT be called
      * unless the key's server has already been saved to the device
-     * using {@code insertNewServer()}.
+     * using {@code insertNewServer()}. Written behind.
      * @param keyID  The registration key's U2F-compliant handle.
      * @param appID  The ID of the server the key is registered to.
      * @param userID The username of the account the key belongs to.
      */
-    public void insertNewKey(String keyID, String appID, String userID) {
+    public void insertNewKey(final String keyID, final String appID, final String userID) {
+
+        final long now = System.currentTimeMillis();
+
+        final String[] key = { appID, userID };
+        pendingKeys.put(keyID, key);
+
+        enqueue(new Write(keyID, KeyChange.INSERTED) {
 
-        DateFormat df = new SimpleDateFormat("yyyy/MM/dd' 'HH:mm");
-        df.setTimeZone(TimeZone.getDefault());
-        String dtTm = df.format(new Date());
+            @Override
+            boolean apply() {
+                synchronized (insertKey) {
+                    insertKey.bindString(1, keyID);
+                    insertKey.bindString(2, appID);
+                    insertKey.bindString(3, userID);
+                    insertKey.bindLong(4, now);
+                    return insertKey.executeInsert() != -1;
+                }
+            }
 
-        database.execSQL("INSERT INTO keys VALUES ('" +
-                         keyID  + "','" +
-                         appID  + "','" +
-                         0      + "','" +
-                         userID + "','" +
-                         dtTm   + "')");
+            @Override
+            void committed() {
+                pendingKeys.remove(keyID, key);
+            }
 
-        refreshKeyInfo();
+        });
 
     }
 
     /**
-     * Appends information for a new server to the database.
+     * Appends information for a new server to the database, unless it's already
+     * there. Written behind.
      * @param appID   The U2F server ID.
      * @param appURL The 2Q2R server domain.
      * @param appName The human legible application name.
      */
-    public void insertNewServer(String appID, String appURL, String appName) {
+    public void insertNewServer(final String appID, final String appURL, final String appName) {
 
-        database.execSQL("INSERT INTO servers VALUES ('" +
-                appID   + "','" +
-                appURL + "','" +
-                appName + "')");
+        final ServerInfo server = new ServerInfo();
+        server.appID = appID;
+        server.appURL = appURL;
+        server.appName = appName;
+
+        pendingServers.putIfAbsent(appID, server);
+
+        enqueue(new Write(null, KeyChange.INSERTED) {
+
+            @Override
+            boolean apply() {
+                synchronized (insertServer) {
+                    insertServer.bindString(1, appID);
+                    insertServer.bindString(2, appURL);
+                    insertServer.bindString(3, appName);
+                    insertServer.bindBlob(4, Crypto.appParam(appURL));
+                    return insertServer.executeInsert() != -1;
+                }
+            }
+
+            @Override
+            void committed() {
+                pendingServers.remove(appID, server);
+            }
+
+        });
 
     }
 
@@ -185,13 +959,12 @@ public class KeyDatabase {
      */
     public boolean hasKey(String keyID) {
 
-        Cursor cursor = database.rawQuery("SELECT keyID FROM keys WHERE keyID = '" +
-                keyID + "'", null);
+        if (pendingKeys.containsKey(keyID))
+            return true;
 
-        boolean result = cursor.moveToFirst();
-        cursor.close();
+        awaitOpen();
 
-        return result;
+        return exists(keyExists, keyID);
 
     }
 
@@ -203,13 +976,12 @@ public class KeyDatabase {
      */
     public boolean hasServer(String appID) {
 
-        Cursor cursor = database.rawQuery("SELECT appID FROM servers WHERE appID = '" +
-                appID + "'", null);
+        if (pendingServers.containsKey(appID))
+            return true;
 
-        boolean result = cursor.moveToFirst();
-        cursor.close();
+        awaitOpen();
 
-        return result;
+        return exists(serverExists, appID);
 
     }
 
@@ -221,13 +993,84 @@ public class KeyDatabase {
      */
     public boolean checkUserAlreadyRegistered(String userID, String appID) {
 
-        Cursor cursor = database.rawQuery("SELECT userID, appID " +
-                                          "FROM keys " +
-                                          "WHERE userID = '" + userID + "' " +
-                                          "AND appID = '" + appID + "'",
-                                          null);
+        for (String[] key : pendingKeys.values()) {
+            if (key[0].equals(appID) && key[1].equals(userID))
+                return true;
+        }
+
+        awaitOpen();
+
+        return exists(userKeyExists, appID, userID);
+
+    }
+
+    /**
+     * Stores a signed response so that it can be resent once the network is back.
+     * Written behind.
+     * @param route    Either {@link Outbox#ROUTE_REGISTER} or {@link Outbox#ROUTE_AUTH}.
+     * @param appURL   The base URL of the server the response is for.
+     * @param body     The serialized JSON request body.
+     * @param state    Serialized local state to apply once the server accepts the
+     *                 response, or null if there is none.
+     * @param deadline The time in epoch millis after which the challenge is expired.
+     */
+    public void insertOutboxEntry(String route, String appURL, String body, String state,
+                                  long deadline) {
+
+        long now = System.currentTimeMillis();
+
+        final ContentValues values = new ContentValues();
+        values.put("route", route);
+        values.put("appURL", appURL);
+        values.put("body", body);
+        values.put("state", state);
+        values.put("deadline", deadline);
+        values.put("attempts", 0);
+        values.put("nextAttempt", now);
+        values.put("created", now);
+
+        enqueue(new Write(null, KeyChange.INSERTED) {
+            @Override
+            boolean apply() {
+                return database.insert("outbox", null, values) != -1;
+            }
+        });
+
+    }
+
+    /**
+     * Retrieves the outbox entries which are due to be (re)sent.
+     * @param now   The current time in epoch millis.
+     * @param limit The maximum number of entries to return.
+     * @return Due entries, oldest first.
+     */
+    public List<OutboxEntry> getDueOutboxEntries(long now, int limit) {
+
+        awaitOpen();
+
+        List<OutboxEntry> result = new ArrayList<>();
+
+        Cursor cursor = database.rawQuery("SELECT id, route, appURL, body, state, deadline, " +
+                                          "attempts, created " +
+                                          "FROM outbox " +
+                                          "WHERE nextAttempt <= ? " +
+                                          "ORDER BY id " +
+                                          "LIMIT " + limit,
+                                          new String[] { Long.toString(now) });
+
+        while (cursor.moveToNext()) {
+            OutboxEntry entry = new OutboxEntry();
+            entry.id = cursor.getLong(0);
+            entry.route = cursor.getString(1);
+            entry.appURL = cursor.getString(2);
+            entry.body = cursor.getString(3);
+            entry.state = cursor.getString(4);
+            entry.deadline = cursor.getLong(5);
+            entry.attempts = cursor.getInt(6);
+            entry.created = cursor.getLong(7);
+            result.add(entry);
+        }
 
-        boolean result = cursor.getCount() > 0;
         cursor.close();
 
         return result;
@@ -235,14 +1078,333 @@ public class KeyDatabase {
     }
 
     /**
-     * Completely wipes the 2Q2R database by clearing "servers" and "keys".
+     * Pushes an outbox entry's next attempt back after a failed delivery.
+     * Written behind.
+     * @param id          The entry's row ID.
+     * @param attempts    The number of attempts made so far.
+     * @param nextAttempt The earliest time in epoch millis to try again.
+     */
+    public void rescheduleOutboxEntry(final long id, int attempts, long nextAttempt) {
+
+        final ContentValues values = new ContentValues();
+        values.put("attempts", attempts);
+        values.put("nextAttempt", nextAttempt);
+
+        enqueue(new Write(null, KeyChange.UPDATED) {
+            @Override
+            boolean apply() {
+                return database.update("outbox", values, "id = " + id, null) > 0;
+            }
+        });
+
+    }
+
+    /**
+     * Removes an entry from the outbox, after it was delivered or given up on.
+     * Written behind.
+     * @param id The entry's row ID.
+     */
+    public void deleteOutboxEntry(final long id) {
+
+        enqueue(new Write(null, KeyChange.DELETED) {
+            @Override
+            boolean apply() {
+                return database.delete("outbox", "id = " + id, null) > 0;
+            }
+        });
+
+    }
+
+    /**
+     * Removes outbox entries whose challenge has expired. Written behind, and
+     * logs how many were dropped once it has been.
+     * @param now The current time in epoch millis.
+     */
+    public void deleteExpiredOutboxEntries(final long now) {
+
+        enqueue(new Write(null, KeyChange.DELETED) {
+            @Override
+            boolean apply() {
+
+                int expired = database.delete("outbox", "deadline < " + now, null);
+
+                if (expired > 0)
+                    Log.i("MONITOR", "Outbox dropped " + expired + " expired responses.");
+
+                return expired > 0;
+
+            }
+        });
+
+    }
+
+    /**
+     * Blocks until every write queued so far has been committed, so that the
+     * queries which don't account for queued writes, e.g. the outbox's, see
+     * them. Must not be called on {@link Workers#DISK}, where the writer runs.
+     */
+    public void awaitWrites() {
+
+        awaitOpen();
+
+        boolean interrupted = false;
+
+        synchronized (writeLock) {
+
+            long target = writesQueued;
+
+            while (writesDone < target) {
+                try {
+                    writeLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+    }
+
+    /**
+     * @return The number of responses waiting in the outbox.
+     */
+    public int getOutboxDepth() {
+
+        awaitOpen();
+
+        Cursor cursor = database.rawQuery("SELECT COUNT(*) FROM outbox", null);
+        cursor.moveToFirst();
+        int depth = cursor.getInt(0);
+        cursor.close();
+
+        return depth;
+
+    }
+
+    /**
+     * @return The earliest scheduled attempt in the outbox in epoch millis, or
+     *         -1 if the outbox is empty.
+     */
+    public long getNextOutboxAttempt() {
+
+        awaitOpen();
+
+        Cursor cursor = database.rawQuery("SELECT MIN(nextAttempt) FROM outbox", null);
+        cursor.moveToFirst();
+        long next = cursor.isNull(0) ? -1 : cursor.getLong(0);
+        cursor.close();
+
+        return next;
+
+    }
+
+    /**
+     * Completely wipes the 2Q2R database by clearing "servers", "keys" and "outbox",
+     * and deletes the keys themselves from the keystore.
      */
     public void clear() {
 
+        awaitOpen();
+
+        // Anything still queued would otherwise land after the wipe.
+        synchronized (writeLock) {
+            writesDone += pendingWrites.size();
+            pendingWrites.clear();
+            writeLock.notifyAll();
+        }
+
+        pendingCounters.clear();
+        signedCounters.clear();
+        pendingKeys.clear();
+        pendingServers.clear();
+
+        List<KeyChange> changes = new ArrayList<>();
+        Cursor cursor = database.rawQuery("SELECT keyID FROM keys", null);
+
+        while (cursor.moveToNext()) {
+            String keyID = cursor.getString(0);
+            U2F.keys().delete(keyID);
+            changes.add(new KeyChange(KeyChange.DELETED, keyID, null));
+        }
+
+        cursor.close();
+
         database.execSQL("DELETE FROM keys");
         database.execSQL("DELETE FROM servers");
+        database.execSQL("DELETE FROM outbox");
+
+        publish(changes);
+
+    }
+
+    /**
+     * Creates the full-text index for {@link #searchKeys}, unless it exists.
+     * It is keyed by the keys table's rowids and kept up to date by triggers;
+     * when first created, it is filled with the keys already registered.
+     */
+    private void createSearchIndex() {
+
+        Cursor cursor = database.rawQuery("SELECT 1 FROM sqlite_master " +
+                                          "WHERE type = 'table' AND name = 'keys_search'", null);
+        boolean exists = cursor.moveToFirst();
+        cursor.close();
+
+        if (exists)
+            return;
+
+        database.beginTransaction();
+
+        try {
+
+            // Prefix indexes keep short prefixes from having to merge huge doclists.
+            database.execSQL("CREATE VIRTUAL TABLE keys_search " +
+                             "USING fts4(userID, appName, appURL, prefix=\"1,2,3\")");
+            createSearchTriggers();
+            database.execSQL("INSERT INTO keys_search(docid, userID, appName, appURL) " +
+                             "SELECT keys.rowid, userID, appName, appURL " +
+                             "FROM keys, servers WHERE keys.appID = servers.appID");
+
+            database.setTransactionSuccessful();
+
+        } finally {
+            database.endTransaction();
+        }
+
+    }
 
-        refreshKeyInfo();
+    private void createSearchTriggers() {
+        database.execSQL("CREATE TRIGGER keys_search_insert AFTER INSERT ON keys BEGIN " +
+                         "INSERT INTO keys_search(docid, userID, appName, appURL) " +
+                         "SELECT new.rowid, new.userID, appName, appURL " +
+                         "FROM servers WHERE appID = new.appID; END");
+        database.execSQL("CREATE TRIGGER keys_search_delete AFTER DELETE ON keys BEGIN " +
+                         "DELETE FROM keys_search WHERE docid = old.rowid; END");
+    }
+
+    /**
+     * Queues a write, scheduling the writer if it isn't already.
+     */
+    private void enqueue(Write write) {
+
+        synchronized (writeLock) {
+
+            pendingWrites.add(write);
+            writesQueued++;
+
+            if (flushScheduled)
+                return;
+
+            flushScheduled = true;
+
+        }
+
+        Workers.DISK.execute(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+
+    }
+
+    /**
+     * Applies every queued write in a single transaction, then publishes the
+     * keys it changed. Runs on {@link Workers#DISK}, so writes queued while it
+     * waits its turn behind other disk work are coalesced into the same
+     * transaction.
+     */
+    private void flush() {
+
+        awaitOpen();
+
+        List<Write> batch;
+
+        synchronized (writeLock) {
+            batch = pendingWrites;
+            pendingWrites = new ArrayList<>();
+            flushScheduled = false;
+        }
+
+        if (batch.isEmpty())
+            return;
+
+        try {
+            commit(batch);
+        } finally {
+            synchronized (writeLock) {
+                writesDone += batch.size();
+                writeLock.notifyAll();
+            }
+        }
+
+    }
+
+    private void commit(List<Write> batch) {
+
+        long start = System.nanoTime();
+
+        // How each key changed over the whole batch, in order of first change.
+        Map<String, Integer> changed = new LinkedHashMap<>();
+
+        database.beginTransactionNonExclusive();
+
+        try {
+
+            for (Write write : batch) {
+                try {
+                    if (write.apply() && write.keyID != null && !changed.containsKey(write.keyID))
+                        changed.put(write.keyID, write.change);
+                } catch (SQLException e) {
+                    // Only this write is lost; the rest of the batch still commits.
+                    e.printStackTrace();
+                }
+            }
+
+            database.setTransactionSuccessful();
+
+        } finally {
+
+            database.endTransaction();
+
+            for (Write write : batch)
+                write.committed();
+
+        }
+
+        Log.i("MONITOR", "Wrote " + batch.size() + " queued changes in one transaction in " +
+                Keys.millisSince(start) + " ms");
+
+        List<KeyChange> changes = new ArrayList<>(changed.size());
+
+        for (Map.Entry<String, Integer> entry : changed.entrySet()) {
+
+            KeyRow row = getKey(entry.getKey());
+
+            if (row != null)
+                changes.add(new KeyChange(entry.getValue(), entry.getKey(), row));
+
+        }
+
+        publish(changes);
+
+    }
+
+    /**
+     * Runs a compiled {@code SELECT EXISTS (...)} probe with the given arguments.
+     */
+    private static boolean exists(SQLiteStatement statement, String... args) {
+
+        synchronized (statement) {
+
+            for (int i = 0; i < args.length; i++)
+                statement.bindString(i + 1, args[i]);
+
+            return statement.simpleQueryForLong() != 0;
+
+        }
 
     }
 
@@ -0,0 +1,68 @@
+package com.terainsights.a2q2r_android.util;
+
+import android.util.Log;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serializes work on the same key while letting different keys proceed in
+ * parallel. Each key handle maps onto one of a fixed set of locks, so two
+ * authentications with the same key can never check and sign against the same
+ * counter at once, while keys which happen to share a stripe only cost each
+ * other a short wait. Waits long enough to notice are logged.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public class KeyLocks {
+
+    /**
+     * The number of locks keys are spread over; a power of two.
+     */
+    public static final int STRIPES = 32;
+
+    private static final ReentrantLock[] LOCKS = new ReentrantLock[STRIPES];
+
+    static {
+        for (int i = 0; i < STRIPES; i++)
+            LOCKS[i] = new ReentrantLock();
+    }
+
+    /**
+     * Blocks until the calling thread holds the given key's lock. Every call
+     * must be matched by a call to {@link #unlock(String)} in a finally block.
+     * @param keyID A key handle.
+     */
+    public static void lock(String keyID) {
+
+        ReentrantLock lock = stripe(keyID);
+
+        if (lock.tryLock())
+            return;
+
+        long start = System.nanoTime();
+        lock.lock();
+
+        Log.i("MONITOR", "Waited " + Keys.millisSince(start) + " ms for the lock on key " +
+                keyID);
+
+    }
+
+    /**
+     * Releases a lock taken with {@link #lock(String)}.
+     * @param keyID The same key handle.
+     */
+    public static void unlock(String keyID) {
+        stripe(keyID).unlock();
+    }
+
+    static ReentrantLock stripe(String keyID) {
+
+        int h = keyID.hashCode();
+        h ^= h >>> 16; // Spread the high bits, as HashMap does.
+
+        return LOCKS[h & (STRIPES - 1)];
+
+    }
+
+}
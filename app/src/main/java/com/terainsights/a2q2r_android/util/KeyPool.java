@@ -0,0 +1,185 @@
+package com.terainsights.a2q2r_android.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.security.GeneralSecurityException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * A small pool of key pairs generated ahead of time in the AndroidKeyStore, so
+ * that registering doesn't have to wait for key generation once the user has
+ * approved. Pooled keys aren't bound to any server until claimed. The pool is
+ * topped up in the background, one key per task on {@link Workers#CRYPTO},
+ * whenever it falls to {@link #LOW_WATER} keys, and never holds more than
+ * {@link #TARGET_SIZE}. The aliases of pooled keys are kept in shared
+ * preferences, so the pool survives restarts.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public class KeyPool {
+
+    /**
+     * The number of keys the pool is refilled to.
+     */
+    public static final int TARGET_SIZE = 3;
+
+    /**
+     * Refilling starts once the pool is down to this many keys.
+     */
+    public static final int LOW_WATER = 1;
+
+    private static final String PREFS = "key_pool";
+    private static final String ALIASES = "aliases";
+
+    private static int hits = 0;
+    private static int misses = 0;
+    private static boolean refilling = false;
+
+    /**
+     * Takes a pre-generated key out of the pool.
+     * @return The key's handle, or null if the pool is empty, in which case
+     *         the caller has to generate a key itself.
+     */
+    public static String claim() {
+
+        String keyID = null;
+
+        synchronized (KeyPool.class) {
+
+            Set<String> aliases = aliases();
+            Iterator<String> it = aliases.iterator();
+
+            while (keyID == null && it.hasNext()) {
+
+                String alias = it.next();
+                it.remove();
+
+                if (U2F.keys().contains(alias))
+                    keyID = alias;
+
+            }
+
+            save(aliases);
+
+            if (keyID != null)
+                hits++;
+            else
+                misses++;
+
+            Log.i("MONITOR", "Key pool " + (keyID != null ? "hit" : "miss") + "; " +
+                    hits + " hits, " + misses + " misses, " + aliases.size() + " keys left");
+
+        }
+
+        refill();
+
+        return keyID;
+
+    }
+
+    /**
+     * Starts topping the pool up in the background if it has run low.
+     */
+    public static void refill() {
+
+        synchronized (KeyPool.class) {
+
+            if (refilling || aliases().size() > LOW_WATER)
+                return;
+
+            refilling = true;
+
+        }
+
+        Workers.CRYPTO.execute(new Runnable() {
+            @Override
+            public void run() {
+                generateOne();
+            }
+        });
+
+    }
+
+    /**
+     * Generates a single key, then schedules the next one if the pool still
+     * isn't full, so that signing tasks can run in between. Refilling stops
+     * on any path that doesn't schedule another key, so that a later
+     * {@link #refill()} can start it again.
+     */
+    private static void generateOne() {
+
+        boolean scheduled = false;
+
+        try {
+
+            synchronized (KeyPool.class) {
+                if (aliases().size() >= TARGET_SIZE)
+                    return;
+            }
+
+            long start = System.nanoTime();
+
+            String keyID = Utils.genKeyID();
+
+            boolean generated = false;
+
+            try {
+                generated = U2F.keys().generate(keyID) != null;
+            } catch (GeneralSecurityException | RuntimeException e) {
+                // The AndroidKeyStore throws ProviderException and the like
+                // while the device is locked, for instance.
+                e.printStackTrace();
+            }
+
+            // Key generation isn't possible right now, so don't keep trying.
+            if (!generated)
+                return;
+
+            Log.i("MONITOR", "Key pool generated a key in " + Keys.millisSince(start) + " ms");
+
+            synchronized (KeyPool.class) {
+                Set<String> aliases = aliases();
+                aliases.add(keyID);
+                save(aliases);
+            }
+
+            Workers.CRYPTO.execute(new Runnable() {
+                @Override
+                public void run() {
+                    generateOne();
+                }
+            });
+
+            scheduled = true;
+
+        } finally {
+            if (!scheduled) {
+                synchronized (KeyPool.class) {
+                    refilling = false;
+                }
+            }
+        }
+
+    }
+
+    /**
+     * @return A mutable copy of the pooled aliases.
+     */
+    private static Set<String> aliases() {
+        return new HashSet<>(prefs().getStringSet(ALIASES, new HashSet<String>()));
+    }
+
+    private static void save(Set<String> aliases) {
+        prefs().edit().putStringSet(ALIASES, aliases).apply();
+    }
+
+    private static SharedPreferences prefs() {
+        return U2F.CTX.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+
+}
@@ -0,0 +1,47 @@
+package com.terainsights.a2q2r_android.util;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+
+/**
+ * Creates, looks up and deletes the device's U2F keys, and signs with them.
+ * The app uses the {@link KeystoreKeyProvider}; the {@link SoftwareKeyProvider}
+ * lets the U2F pipeline run on a plain JVM. The one in use is {@link U2F#KEYS}.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public interface KeyProvider extends Signer {
+
+    /**
+     * Generates a P-256 key pair, unless one already exists for the handle.
+     * @param keyID The handle for the new key.
+     * @return The key's public key, or null if the device can't generate keys.
+     */
+    PublicKey generate(String keyID) throws GeneralSecurityException;
+
+    /**
+     * @return True if a key exists for the given handle.
+     */
+    boolean contains(String keyID);
+
+    /**
+     * @param keyID A key handle.
+     * @return The DER-encoded attestation certificate for the key.
+     */
+    byte[] certificate(String keyID) throws GeneralSecurityException;
+
+    /**
+     * Checks, without signing anything, whether a key can be used right now or
+     * would first need the user to confirm their credential.
+     * @param keyID A key handle.
+     * @return False only if the key is known to need confirmation.
+     */
+    boolean isUnlocked(String keyID);
+
+    /**
+     * Deletes a key, if it exists.
+     */
+    void delete(String keyID);
+
+}
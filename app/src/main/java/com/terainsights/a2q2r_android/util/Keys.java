@@ -0,0 +1,138 @@
+package com.terainsights.a2q2r_android.util;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Access to the keys in the AndroidKeyStore. The store is loaded once per
+ * process, and private key and certificate handles are cached by key handle,
+ * so approving an authentication only pays for the signature itself. Cached
+ * handles are dropped whenever their key is deleted or turns out to be
+ * unusable. Load and lookup times are logged separately from signing times.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public class Keys {
+
+    public static final String PROVIDER = "AndroidKeyStore";
+
+    private static final ConcurrentHashMap<String, PrivateKey> PRIVATE_KEYS =
+            new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Certificate> CERTIFICATES =
+            new ConcurrentHashMap<>();
+
+    private static KeyStore store;
+
+    /**
+     * @return The loaded AndroidKeyStore, loading it on first use.
+     */
+    public static synchronized KeyStore store() throws GeneralSecurityException, IOException {
+
+        if (store == null) {
+
+            long start = System.nanoTime();
+
+            KeyStore ks = KeyStore.getInstance(PROVIDER);
+            ks.load(null);
+            store = ks;
+
+            Log.i("MONITOR", "Keystore load took " + millisSince(start) + " ms");
+
+        }
+
+        return store;
+
+    }
+
+    /**
+     * @param keyID A key handle.
+     * @return The key's private key handle, or null if there is no such key.
+     */
+    public static PrivateKey privateKey(String keyID) throws GeneralSecurityException,
+            IOException {
+
+        PrivateKey key = PRIVATE_KEYS.get(keyID);
+
+        if (key == null) {
+
+            long start = System.nanoTime();
+            key = (PrivateKey) store().getKey(keyID, null);
+            Log.i("MONITOR", "Keystore private key lookup took " + millisSince(start) + " ms");
+
+            if (key != null)
+                PRIVATE_KEYS.put(keyID, key);
+
+        }
+
+        return key;
+
+    }
+
+    /**
+     * @param keyID A key handle.
+     * @return The key's certificate, or null if there is no such key.
+     */
+    public static Certificate certificate(String keyID) throws GeneralSecurityException,
+            IOException {
+
+        Certificate cert = CERTIFICATES.get(keyID);
+
+        if (cert == null) {
+
+            long start = System.nanoTime();
+            cert = store().getCertificate(keyID);
+            Log.i("MONITOR", "Keystore certificate lookup took " + millisSince(start) + " ms");
+
+            if (cert != null)
+                CERTIFICATES.put(keyID, cert);
+
+        }
+
+        return cert;
+
+    }
+
+    /**
+     * @return True if the keystore holds a key for the given handle.
+     */
+    public static boolean contains(String keyID) throws GeneralSecurityException, IOException {
+        return PRIVATE_KEYS.containsKey(keyID) || store().containsAlias(keyID);
+    }
+
+    /**
+     * Deletes a key from the keystore along with its cached handles.
+     * @param keyID A key handle.
+     */
+    public static void delete(String keyID) {
+
+        invalidate(keyID);
+
+        try {
+            store().deleteEntry(keyID);
+        } catch (GeneralSecurityException | IOException e) {
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * Forgets the cached handles for a key, e.g. because it has been invalidated.
+     * @param keyID A key handle.
+     */
+    public static void invalidate(String keyID) {
+        PRIVATE_KEYS.remove(keyID);
+        CERTIFICATES.remove(keyID);
+    }
+
+    static long millisSince(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+
+}
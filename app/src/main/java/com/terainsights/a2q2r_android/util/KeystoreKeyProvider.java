@@ -0,0 +1,119 @@
+package com.terainsights.a2q2r_android.util;
+
+import android.content.Context;
+import android.os.Build;
+import android.security.keystore.UserNotAuthenticatedException;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyStoreException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.security.cert.Certificate;
+
+/**
+ * Keeps keys in the AndroidKeyStore, through the {@link Keys} cache.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public class KeystoreKeyProvider implements KeyProvider {
+
+    private final Context context;
+
+    /**
+     * @param context The application context, needed to generate keys on API 19-22.
+     */
+    public KeystoreKeyProvider(Context context) {
+        this.context = context;
+    }
+
+    @Override
+    public PublicKey generate(String keyID) {
+        return Utils.genKeys(keyID, context);
+    }
+
+    @Override
+    public boolean contains(String keyID) {
+
+        try {
+            return Keys.contains(keyID);
+        } catch (GeneralSecurityException | IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+    }
+
+    @Override
+    public byte[] certificate(String keyID) throws GeneralSecurityException {
+
+        try {
+
+            Certificate cert = Keys.certificate(keyID);
+
+            if (cert == null)
+                throw new KeyStoreException("No certificate for " + keyID);
+
+            return cert.getEncoded();
+
+        } catch (IOException e) {
+            throw new KeyStoreException(e);
+        }
+
+    }
+
+    @Override
+    public byte[] sign(String keyID, byte[] data) throws GeneralSecurityException,
+            Utils.AuthExpiredException {
+
+        byte[] signature = Utils.sign(data, keyID);
+
+        if (signature == null)
+            throw new SignatureException("Could not sign with " + keyID);
+
+        return signature;
+
+    }
+
+    /**
+     * Initializes a signature with the key, which is where the keystore checks
+     * user authentication, but signs nothing.
+     */
+    @Override
+    public boolean isUnlocked(String keyID) {
+
+        if (Build.VERSION.SDK_INT < 23)
+            return true;
+
+        try {
+
+            PrivateKey key = Keys.privateKey(keyID);
+
+            if (key != null)
+                Crypto.signature(key).initSign(key);
+
+            return true;
+
+        } catch (InvalidKeyException e) {
+            // Not caught by type, since API 19-22 can't load the class.
+            if (Build.VERSION.SDK_INT >= 23 && e instanceof UserNotAuthenticatedException)
+                return false;
+            e.printStackTrace();
+            return true;
+        } catch (GeneralSecurityException | IOException e) {
+            // Not an authentication problem; let signing report it.
+            e.printStackTrace();
+            return true;
+        }
+
+    }
+
+    @Override
+    public void delete(String keyID) {
+        Keys.delete(keyID);
+    }
+
+}
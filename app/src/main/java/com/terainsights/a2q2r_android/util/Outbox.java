@@ -0,0 +1,287 @@
+package com.terainsights.a2q2r_android.util;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Response;
+
+/**
+ * A durable queue of signed registration, authentication and decline responses
+ * that could not be delivered because of a network failure. Entries live in
+ * the {@code outbox} table of the {@link KeyDatabase}, so they survive the app
+ * being killed, and are retried with jittered exponential backoff, in batches,
+ * whenever connectivity returns. Entries whose challenge has expired are dropped
+ * since the server would reject them anyway.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public class Outbox {
+
+    public static final String ROUTE_REGISTER = "register";
+    public static final String ROUTE_AUTH = "auth";
+
+    /**
+     * How long a challenge is assumed to stay valid on the server after it
+     * has been signed.
+     */
+    public static final long CHALLENGE_LIFETIME_MILLIS = 5 * 60_000;
+
+    private static final long BASE_BACKOFF_MILLIS = 2_000;
+    private static final long MAX_BACKOFF_MILLIS = 60_000;
+
+    /**
+     * The maximum number of entries sent per pass over the outbox.
+     */
+    private static final int BATCH_SIZE = 16;
+
+    private static final ScheduledExecutorService WORKER =
+            Executors.newSingleThreadScheduledExecutor();
+    private static final Random RANDOM = new Random();
+
+    private static ScheduledFuture<?> pending;
+
+    /**
+     * Queues a response for redelivery.
+     * @param route   {@link #ROUTE_REGISTER} or {@link #ROUTE_AUTH}.
+     * @param body    The serialized request body.
+     * @param session The flow the response belongs to, which is completed
+     *                locally once the server accepts it, and whose deadline
+     *                is when the entry expires.
+     */
+    public static void enqueue(final String route, final String body,
+                               final U2FSession session) {
+
+        WORKER.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                String state;
+
+                try {
+                    state = session.toState().toString();
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                    return;
+                }
+
+                U2F.DATABASE.insertOutboxEntry(route, session.server.appURL, body, state,
+                        session.deadline());
+                U2F.DATABASE.awaitWrites();
+                Log.i("MONITOR", "Outbox queued a " + route + " response; depth is now " +
+                        U2F.DATABASE.getOutboxDepth());
+                schedule(BASE_BACKOFF_MILLIS);
+
+            }
+        });
+
+    }
+
+    /**
+     * Attempts to deliver every due entry right away, e.g. because the device
+     * just came back online.
+     */
+    public static void flush() {
+
+        WORKER.execute(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        });
+
+    }
+
+    /**
+     * @return The number of responses waiting to be delivered, as of the last
+     *         batch of database writes.
+     */
+    public static int depth() {
+        return U2F.DATABASE.getOutboxDepth();
+    }
+
+    /**
+     * Makes one pass over the outbox, then schedules the next one if anything is
+     * left. Only ever runs on {@link #WORKER}. The outbox is written through the
+     * database's writer on {@link Workers#DISK} like everything else, so each
+     * pass waits for its own writes before reading the outbox again.
+     */
+    private static void drain() {
+
+        long now = System.currentTimeMillis();
+
+        U2F.DATABASE.deleteExpiredOutboxEntries(now);
+        U2F.DATABASE.awaitWrites();
+
+        List<KeyDatabase.OutboxEntry> due = U2F.DATABASE.getDueOutboxEntries(now, BATCH_SIZE);
+
+        for (KeyDatabase.OutboxEntry entry : due) {
+            if (!send(entry))
+                break; // Still offline; don't burn an attempt on the rest of the batch.
+        }
+
+        U2F.DATABASE.awaitWrites();
+
+        if (!due.isEmpty())
+            Log.i("MONITOR", "Outbox depth is now " + U2F.DATABASE.getOutboxDepth());
+
+        long next = U2F.DATABASE.getNextOutboxAttempt();
+
+        if (next >= 0)
+            schedule(Math.max(0, next - System.currentTimeMillis()));
+
+    }
+
+    /**
+     * Sends a single entry synchronously. The entry is only removed once the
+     * reply has been handled, so that its local state is never lost. Anything
+     * else going wrong with it only puts that entry off until later.
+     * @return False if the server could not be reached.
+     */
+    private static boolean send(KeyDatabase.OutboxEntry entry) {
+
+        U2FJson.Message data = new U2FJson.Raw(entry.body);
+        int attempts = entry.attempts + 1;
+
+        try {
+
+            Call<ResponseBody> call = ROUTE_REGISTER.equals(entry.route)
+                    ? Transport.registration(entry.appURL).register(data)
+                    : Transport.authentication(entry.appURL).authenticate(data);
+
+            Response<ResponseBody> response = call.execute();
+
+            if (response.code() >= 500) {
+                U2F.DATABASE.rescheduleOutboxEntry(entry.id, attempts,
+                        System.currentTimeMillis() + backoff(attempts));
+                return true;
+            }
+
+            delivered(entry, response.code(), message(response));
+
+            U2F.DATABASE.deleteOutboxEntry(entry.id);
+
+            Log.i("MONITOR", "Outbox delivered a " + entry.route + " response after " +
+                    attempts + " attempts and " +
+                    (System.currentTimeMillis() - entry.created) + " ms");
+
+            return true;
+
+        } catch (IOException e) {
+
+            e.printStackTrace();
+            U2F.DATABASE.rescheduleOutboxEntry(entry.id, attempts,
+                    System.currentTimeMillis() + backoff(attempts));
+
+            return false;
+
+        } catch (RuntimeException e) {
+
+            e.printStackTrace();
+            U2F.DATABASE.rescheduleOutboxEntry(entry.id, attempts,
+                    System.currentTimeMillis() + backoff(attempts));
+
+            return true;
+
+        }
+
+    }
+
+    /**
+     * @return The text of the server's reply, or null if it had none, e.g. a
+     *         204, or if it couldn't be read after the status arrived.
+     */
+    private static String message(Response<ResponseBody> response) {
+
+        ResponseBody body = response.isSuccessful() ? response.body() : response.errorBody();
+
+        if (body == null)
+            return null;
+
+        try {
+            return body.string();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+
+    }
+
+    /**
+     * Applies an accepted response's local state and shows the server's reply.
+     * The state is queued on the database's writer ahead of the entry's removal,
+     * so both land in order.
+     */
+    private static void delivered(KeyDatabase.OutboxEntry entry, int code, String body) {
+
+        try {
+
+            if (code == 200 && entry.state != null) {
+                U2FSession session = U2FSession.fromState(new JSONObject(entry.state));
+                if (ROUTE_REGISTER.equals(entry.route))
+                    U2F.completeRegistration(session);
+                else
+                    U2F.completeAuthentication(session);
+            }
+
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+
+        if (body != null)
+            Text.displayShort(U2F.CTX, body);
+
+    }
+
+    /**
+     * Exponential backoff with "equal jitter", so that many queued responses
+     * don't all retry in lockstep.
+     * @param attempts The number of attempts made so far.
+     * @return The delay in millis before the next attempt.
+     */
+    private static long backoff(int attempts) {
+
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS,
+                BASE_BACKOFF_MILLIS << Math.min(attempts, 16));
+
+        return ceiling / 2 + (long) (RANDOM.nextDouble() * (ceiling / 2));
+
+    }
+
+    /**
+     * Makes sure a pass over the outbox runs no later than {@code delay} from now.
+     */
+    private static synchronized void schedule(long delay) {
+
+        if (pending != null && !pending.isDone() &&
+                pending.getDelay(TimeUnit.MILLISECONDS) <= delay)
+            return;
+
+        if (pending != null)
+            pending.cancel(false);
+
+        pending = WORKER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Outbox.class) {
+                    pending = null;
+                }
+                drain();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+
+    }
+
+}
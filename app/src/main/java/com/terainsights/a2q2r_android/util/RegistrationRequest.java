@@ -0,0 +1,52 @@
+package com.terainsights.a2q2r_android.util;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * A request to register this device with an account on a 2Q2R server.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public class RegistrationRequest extends U2FRequest {
+
+    /**
+     * Where the server's name, appID and appURL can be retrieved.
+     */
+    public final String infoURL;
+
+    /**
+     * The account being registered.
+     */
+    public final String userID;
+
+    public RegistrationRequest(String challenge, String infoURL, String userID) {
+        super(challenge);
+        this.infoURL = infoURL;
+        this.userID = userID;
+    }
+
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeString(challenge);
+        out.writeString(infoURL);
+        out.writeString(userID);
+    }
+
+    public static final Parcelable.Creator<RegistrationRequest> CREATOR =
+            new Parcelable.Creator<RegistrationRequest>() {
+
+        @Override
+        public RegistrationRequest createFromParcel(Parcel in) {
+            return new RegistrationRequest(in.readString(), in.readString(), in.readString());
+        }
+
+        @Override
+        public RegistrationRequest[] newArray(int size) {
+            return new RegistrationRequest[size];
+        }
+
+    };
+
+}
@@ -0,0 +1,201 @@
+package com.terainsights.a2q2r_android.util;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import okhttp3.Cache;
+import okhttp3.CacheControl;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Caches the info documents served by 2Q2R servers at their {@code infoURL}, so
+ * that enrolling several accounts on the same server doesn't refetch it every
+ * time. Fresh entries are answered from memory; past that, requests go through
+ * an OkHttp disk cache which honours {@code Cache-Control} and revalidates
+ * stale entries with {@code ETag}/{@code Last-Modified} conditional requests.
+ * Concurrent fetches of the same URL share a single call.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public class ServerInfoCache {
+
+    /**
+     * Receives the result of {@link #fetch(String, Listener)} on the main thread.
+     */
+    public interface Listener {
+        void onInfo(KeyDatabase.ServerInfo info);
+        void onError(Throwable t);
+    }
+
+    /**
+     * Parsed server info and the time it stops being fresh.
+     */
+    private static class Entry {
+        KeyDatabase.ServerInfo info;
+        long expires;
+    }
+
+    /**
+     * Freshness given to responses which don't state a max-age of their own.
+     */
+    private static final long DEFAULT_TTL_MILLIS = 60_000;
+
+    /**
+     * Size limit for the on-disk HTTP cache.
+     */
+    private static final long DISK_CACHE_BYTES = 256 * 1024;
+
+    private static final HashMap<String, Entry> MEMORY = new HashMap<>();
+    private static final HashMap<String, List<Listener>> IN_FLIGHT = new HashMap<>();
+    private static final Handler MAIN = new Handler(Looper.getMainLooper());
+
+    private static OkHttpClient client;
+
+    /**
+     * Retrieves the info document for a server, from cache if possible.
+     * @param infoURL  The server's info URL, as given in a registration QR.
+     * @param listener Notified on the main thread once the info is available.
+     */
+    public static void fetch(final String infoURL, Listener listener) {
+
+        synchronized (ServerInfoCache.class) {
+
+            Entry entry = MEMORY.get(infoURL);
+
+            if (entry != null && entry.expires > System.currentTimeMillis()) {
+                deliver(listener, entry.info, null);
+                return;
+            }
+
+            List<Listener> waiting = IN_FLIGHT.get(infoURL);
+
+            if (waiting != null) {
+                waiting.add(listener);
+                return;
+            }
+
+            waiting = new ArrayList<>();
+            waiting.add(listener);
+            IN_FLIGHT.put(infoURL, waiting);
+
+        }
+
+        client().newCall(new Request.Builder().url(infoURL).build()).enqueue(new Callback() {
+
+            @Override
+            public void onFailure(Call call, IOException e) {
+                complete(infoURL, null, e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) throws IOException {
+
+                try {
+
+                    if (!response.isSuccessful()) {
+                        complete(infoURL, null, new IOException("Server info request failed: " +
+                                response.code()));
+                        return;
+                    }
+
+                    KeyDatabase.ServerInfo info = U2FJson.readServerInfo(
+                            response.body().charStream());
+                    CacheControl cc = response.cacheControl();
+
+                    if (!cc.noStore() && !cc.noCache()) {
+
+                        Entry entry = new Entry();
+                        entry.info = info;
+                        entry.expires = System.currentTimeMillis() + (cc.maxAgeSeconds() >= 0
+                                ? cc.maxAgeSeconds() * 1000L
+                                : DEFAULT_TTL_MILLIS);
+
+                        synchronized (ServerInfoCache.class) {
+                            MEMORY.put(infoURL, entry);
+                        }
+
+                    }
+
+                    complete(infoURL, info, null);
+
+                } catch (IOException e) {
+                    complete(infoURL, null, e);
+                } finally {
+                    response.body().close();
+                }
+
+            }
+
+        });
+
+    }
+
+    /**
+     * Drops all parsed server info from memory.
+     */
+    public static synchronized void clear() {
+        MEMORY.clear();
+    }
+
+    /**
+     * Hands the result of a fetch to everyone who was waiting on it.
+     */
+    private static void complete(String infoURL, KeyDatabase.ServerInfo info,
+                                 Throwable error) {
+
+        List<Listener> waiting;
+
+        synchronized (ServerInfoCache.class) {
+            waiting = IN_FLIGHT.remove(infoURL);
+        }
+
+        if (waiting != null)
+            for (Listener listener : waiting)
+                deliver(listener, info, error);
+
+    }
+
+    private static void deliver(final Listener listener, final KeyDatabase.ServerInfo info,
+                                final Throwable error) {
+
+        MAIN.post(new Runnable() {
+            @Override
+            public void run() {
+                if (error == null)
+                    listener.onInfo(info);
+                else
+                    listener.onError(error);
+            }
+        });
+
+    }
+
+    /**
+     * Lazily derives a client with a disk cache from the shared one, which keeps
+     * using the shared connection pool and dispatcher.
+     */
+    private static synchronized OkHttpClient client() {
+
+        if (client == null) {
+            File dir = new File(U2F.CTX.getCacheDir(), "server-info");
+            client = Transport.CLIENT.newBuilder()
+                    .cache(new Cache(dir, DISK_CACHE_BYTES))
+                    .build();
+        }
+
+        return client;
+
+    }
+
+}
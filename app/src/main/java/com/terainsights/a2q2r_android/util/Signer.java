@@ -0,0 +1,25 @@
+package com.terainsights.a2q2r_android.util;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * Signs U2F messages with a device key.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public interface Signer {
+
+    /**
+     * Signs data with SHA256withECDSA.
+     * @param keyID The handle of the key to sign with.
+     * @param data  The bytes to be signed.
+     * @return The DER-encoded signature.
+     * @throws GeneralSecurityException If the key is missing or unusable.
+     * @throws Utils.AuthExpiredException If the key requires the user to have
+     *         unlocked the device more recently.
+     */
+    byte[] sign(String keyID, byte[] data) throws GeneralSecurityException,
+            Utils.AuthExpiredException;
+
+}
@@ -0,0 +1,175 @@
+package com.terainsights.a2q2r_android.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStoreException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps keys in memory using only standard JCA classes, so that registration
+ * and authentication can be exercised and measured off-device. Each key gets a
+ * minimal self-signed X.509 certificate as its attestation. Keys don't outlive
+ * the process, so this must never be used by the app itself.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public class SoftwareKeyProvider implements KeyProvider {
+
+    /**
+     * 1.2.840.10045.4.3.2, ecdsa-with-SHA256.
+     */
+    private static final byte[] ECDSA_WITH_SHA256 =
+            {0x2A, (byte) 0x86, 0x48, (byte) 0xCE, 0x3D, 0x04, 0x03, 0x02};
+
+    /**
+     * 2.5.4.3, commonName.
+     */
+    private static final byte[] COMMON_NAME = {0x55, 0x04, 0x03};
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ConcurrentHashMap<String, KeyPair> keys = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, byte[]> certificates = new ConcurrentHashMap<>();
+
+    @Override
+    public PublicKey generate(String keyID) throws GeneralSecurityException {
+
+        KeyPair existing = keys.get(keyID);
+
+        if (existing != null)
+            return existing.getPublic();
+
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("EC");
+        gen.initialize(new ECGenParameterSpec("secp256r1"));
+
+        KeyPair pair = gen.generateKeyPair();
+        certificates.put(keyID, selfSigned(pair));
+        keys.put(keyID, pair);
+
+        return pair.getPublic();
+
+    }
+
+    @Override
+    public boolean contains(String keyID) {
+        return keys.containsKey(keyID);
+    }
+
+    @Override
+    public byte[] certificate(String keyID) throws GeneralSecurityException {
+
+        byte[] cert = certificates.get(keyID);
+
+        if (cert == null)
+            throw new KeyStoreException("No certificate for " + keyID);
+
+        return cert;
+
+    }
+
+    @Override
+    public byte[] sign(String keyID, byte[] data) throws GeneralSecurityException {
+
+        KeyPair pair = keys.get(keyID);
+
+        if (pair == null)
+            throw new KeyStoreException("No key for " + keyID);
+
+        return sign(pair.getPrivate(), data);
+
+    }
+
+    @Override
+    public boolean isUnlocked(String keyID) {
+        return true;
+    }
+
+    @Override
+    public void delete(String keyID) {
+        keys.remove(keyID);
+        certificates.remove(keyID);
+    }
+
+    private static byte[] sign(PrivateKey key, byte[] data) throws GeneralSecurityException {
+
+        Signature sig = Crypto.signature(key);
+        sig.initSign(key);
+        sig.update(data);
+
+        return sig.sign();
+
+    }
+
+    /**
+     * Builds a version 1 certificate for the key pair, issued by itself to
+     * "CN=2Q2R Software Key" and valid from 1970 through 2049.
+     */
+    private static byte[] selfSigned(KeyPair pair) throws GeneralSecurityException {
+
+        byte[] algorithm = der(0x30, der(0x06, ECDSA_WITH_SHA256));
+
+        byte[] name = der(0x30, der(0x31, der(0x30,
+                der(0x06, COMMON_NAME),
+                der(0x0C, "2Q2R Software Key".getBytes(UTF_8)))));
+
+        byte[] validity = der(0x30,
+                der(0x17, "700101000000Z".getBytes(ASCII)),
+                der(0x17, "491231235959Z".getBytes(ASCII)));
+
+        byte[] tbs = der(0x30,
+                der(0x02, new byte[] {0x01}), // Serial number.
+                algorithm,
+                name,
+                validity,
+                name,
+                pair.getPublic().getEncoded()); // Already a SubjectPublicKeyInfo.
+
+        byte[] signature = sign(pair.getPrivate(), tbs);
+        byte[] bitString = new byte[signature.length + 1]; // No unused bits.
+        System.arraycopy(signature, 0, bitString, 1, signature.length);
+
+        return der(0x30, tbs, algorithm, der(0x03, bitString));
+
+    }
+
+    /**
+     * Encodes a DER element from its tag and the concatenation of its contents.
+     */
+    private static byte[] der(int tag, byte[]... contents) {
+
+        int length = 0;
+
+        for (byte[] part : contents)
+            length += part.length;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length + 4);
+        out.write(tag);
+
+        if (length < 0x80) {
+            out.write(length);
+        } else if (length <= 0xFF) {
+            out.write(0x81);
+            out.write(length);
+        } else {
+            out.write(0x82);
+            out.write(length >> 8);
+            out.write(length);
+        }
+
+        for (byte[] part : contents)
+            out.write(part, 0, part.length);
+
+        return out.toByteArray();
+
+    }
+
+}
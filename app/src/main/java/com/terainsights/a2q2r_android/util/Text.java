@@ -5,7 +5,8 @@ import android.view.Gravity;
 import android.widget.Toast;
 
 /**
- * A convenience class for displaying quick Toast dialogs.
+ * A convenience class for displaying quick Toast dialogs. Safe to call from any
+ * thread; the Toast is always shown from the UI thread.
  *
  * @author Sam Claus, Tera Insights, LLC
  * @version 7/26/16
@@ -13,34 +14,31 @@ import android.widget.Toast;
 public class Text {
 
     public static void displayShort(Context ctx, String text) {
-
-        Toast dialog = Toast.makeText(ctx, text, Toast.LENGTH_SHORT);
-        dialog.setGravity(Gravity.CENTER, 0, 0);
-        dialog.show();
-
+        display(ctx, text, Toast.LENGTH_SHORT);
     }
 
     public static void displayLong(Context ctx, String text) {
-
-        Toast dialog = Toast.makeText(ctx, text, Toast.LENGTH_LONG);
-        dialog.setGravity(Gravity.CENTER, 0, 0);
-        dialog.show();
-
+        display(ctx, text, Toast.LENGTH_LONG);
     }
 
     public static void displayShort(Context ctx, int resID) {
-
-        Toast dialog = Toast.makeText(ctx, ctx.getString(resID), Toast.LENGTH_SHORT);
-        dialog.setGravity(Gravity.CENTER, 0, 0);
-        dialog.show();
-
+        display(ctx, ctx.getString(resID), Toast.LENGTH_SHORT);
     }
 
     public static void displayLong(Context ctx, int resID) {
+        display(ctx, ctx.getString(resID), Toast.LENGTH_LONG);
+    }
+
+    private static void display(final Context ctx, final String text, final int duration) {
 
-        Toast dialog = Toast.makeText(ctx, ctx.getString(resID), Toast.LENGTH_LONG);
-        dialog.setGravity(Gravity.CENTER, 0, 0);
-        dialog.show();
+        Workers.onMain(new Runnable() {
+            @Override
+            public void run() {
+                Toast dialog = Toast.makeText(ctx, text, duration);
+                dialog.setGravity(Gravity.CENTER, 0, 0);
+                dialog.show();
+            }
+        });
 
     }
 
@@ -0,0 +1,203 @@
+package com.terainsights.a2q2r_android.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import retrofit2.Retrofit;
+
+/**
+ * Application-wide HTTP transport for talking to 2Q2R servers. Every request
+ * goes through a single {@link OkHttpClient}, so connections to a relying party
+ * are kept alive and reused between back-to-back registrations and
+ * authentications instead of paying a new TCP and TLS handshake each time.
+ * Retrofit proxies are cached per base URL, and connections can be opened
+ * speculatively while the user is still looking at a confirmation dialog.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public class Transport {
+
+    /**
+     * How long an idle connection to a 2Q2R server is kept open for reuse.
+     */
+    private static final long KEEP_ALIVE_MINUTES = 5;
+
+    /**
+     * The number of idle connections kept in the pool. Users rarely talk to
+     * more than a handful of servers at once.
+     */
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+
+    /**
+     * Runs asynchronous calls on the {@link Workers#NETWORK} pool, never queueing
+     * more than it can hold.
+     */
+    private static final Dispatcher DISPATCHER = new Dispatcher(Workers.NETWORK);
+
+    static {
+        DISPATCHER.setMaxRequests(Workers.NETWORK.capacity());
+    }
+
+    /**
+     * The single client shared by every Retrofit instance.
+     */
+    public static final OkHttpClient CLIENT = new OkHttpClient.Builder()
+            .dispatcher(DISPATCHER)
+            .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+            .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+            .connectTimeout(10, TimeUnit.SECONDS)
+            .readTimeout(20, TimeUnit.SECONDS)
+            .writeTimeout(20, TimeUnit.SECONDS)
+            .retryOnConnectionFailure(true)
+            .build();
+
+    /**
+     * Retrofit instances, keyed by normalized base URL.
+     */
+    private static final HashMap<String, Retrofit> RETROFITS = new HashMap<>();
+
+    /**
+     * Service proxies, keyed by normalized base URL and service interface.
+     */
+    private static final HashMap<String, Object> SERVICES = new HashMap<>();
+
+    /**
+     * Outstanding pre-warm requests, keyed by normalized base URL.
+     */
+    private static final HashMap<String, Call> WARMING = new HashMap<>();
+
+    /**
+     * @param appURL The base URL of the 2Q2R server.
+     * @return A cached proxy for the server's registration route.
+     */
+    public static U2F.Registration registration(String appURL) {
+        return service(appURL, U2F.Registration.class);
+    }
+
+    /**
+     * @param appURL The base URL of the 2Q2R server.
+     * @return A cached proxy for the server's authentication route.
+     */
+    public static U2F.Authentication authentication(String appURL) {
+        return service(appURL, U2F.Authentication.class);
+    }
+
+    /**
+     * Looks up or creates the proxy for the given service interface.
+     * @param baseURL The base URL the service lives under.
+     * @param api     The Retrofit service interface.
+     * @return A proxy which sends its calls over the shared {@link #CLIENT}, and
+     *         delivers their callbacks on the {@link Workers#DISK} pool, since
+     *         they mostly write to the database.
+     */
+    public static synchronized <T> T service(String baseURL, Class<T> api) {
+
+        String url = normalize(baseURL);
+        String key = api.getName() + " " + url;
+
+        Object service = SERVICES.get(key);
+
+        if (service == null) {
+
+            Retrofit retro = RETROFITS.get(url);
+
+            if (retro == null) {
+                retro = new Retrofit.Builder()
+                        .baseUrl(url)
+                        .client(CLIENT)
+                        .callbackExecutor(Workers.DISK)
+                        .addConverterFactory(U2FJson.FACTORY)
+                        .build();
+                RETROFITS.put(url, retro);
+            }
+
+            service = retro.create(api);
+            SERVICES.put(key, service);
+
+        }
+
+        return api.cast(service);
+
+    }
+
+    /**
+     * Starts DNS resolution and the TCP/TLS handshake to a server in the
+     * background by sending it a HEAD request through the shared client. The
+     * resulting connection stays in the pool, so the real request sent once the
+     * user approves doesn't have to wait on it. Does nothing if the server is
+     * already being warmed.
+     * @param url The base URL of the server that will be contacted.
+     */
+    public static synchronized void prewarm(String url) {
+
+        String base = normalize(url);
+
+        if (WARMING.containsKey(base))
+            return;
+
+        Call call = CLIENT.newCall(new Request.Builder().url(base).head().build());
+        WARMING.put(base, call);
+
+        call.enqueue(new Callback() {
+
+            @Override
+            public void onFailure(Call call, IOException e) {
+                // Best effort; the real request will connect on its own.
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) throws IOException {
+                response.body().close();
+            }
+
+        });
+
+    }
+
+    /**
+     * Marks a pre-warmed connection as used by a real request, so that it is
+     * left in the pool.
+     * @param url The base URL that was passed to {@link #prewarm(String)}.
+     */
+    public static synchronized void claim(String url) {
+        WARMING.remove(normalize(url));
+    }
+
+    /**
+     * Throws away a pre-warmed connection that will not be used, e.g. because
+     * the confirmation dialog timed out or was cancelled. Only the warm-up request
+     * is cancelled, if it is still in flight; a connection it already opened is
+     * left for the pool to retire once it has been idle for
+     * {@link #KEEP_ALIVE_MINUTES}, so connections to other servers stay usable.
+     * @param url The base URL that was passed to {@link #prewarm(String)}.
+     */
+    public static synchronized void discard(String url) {
+
+        Call call = WARMING.remove(normalize(url));
+
+        if (call != null)
+            call.cancel();
+
+    }
+
+    /**
+     * Retrofit requires base URLs to end with a slash.
+     * @param url A server URL.
+     * @return The URL with a trailing slash.
+     */
+    public static String normalize(String url) {
+        return url.endsWith("/") ? url : url + "/";
+    }
+
+}
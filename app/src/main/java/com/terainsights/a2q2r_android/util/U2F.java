@@ -3,40 +3,23 @@ package com.terainsights.a2q2r_android.util;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
-import android.util.Base64;
 import android.util.Log;
-import android.widget.Toast;
 
 import com.google.firebase.iid.FirebaseInstanceId;
 import com.jaredrummler.android.device.DeviceName;
 import com.terainsights.a2q2r_android.R;
 import com.terainsights.a2q2r_android.dialog.AuthDialog;
 
-import org.apache.commons.io.output.ByteArrayOutputStream;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.io.IOException;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.security.GeneralSecurityException;
 import java.security.PublicKey;
-import java.security.cert.Certificate;
-import java.security.cert.CertificateException;
 import java.security.interfaces.ECPublicKey;
-import java.security.spec.ECPoint;
-import java.util.HashMap;
 
-import okhttp3.MediaType;
-import okhttp3.RequestBody;
 import okhttp3.ResponseBody;
 import retrofit2.Call;
 import retrofit2.Callback;
 import retrofit2.Response;
-import retrofit2.Retrofit;
 import retrofit2.http.Body;
-import retrofit2.http.GET;
 import retrofit2.http.POST;
 
 /**
@@ -57,21 +40,28 @@ public class U2F {
 
     /**
      * The application's internal database containing key/server information.
+     * Opened once per process by the {@code U2FApplication}, on
+     * {@link Workers#DISK}; reads and writes block until it is open, so they
+     * must not be made from the main thread.
      */
     public static KeyDatabase DATABASE;
 
     /**
-     * Static cache for use by U2F state until it is safe to insert a new registration
-     * into the database.
+     * Where the device's keys live. Defaults to the AndroidKeyStore, but may be
+     * replaced before first use, e.g. with a {@link SoftwareKeyProvider}.
      */
-    public static HashMap<String, String> TEMP = new HashMap<>();
+    public static KeyProvider KEYS;
 
     /**
-     * GET call for server info.
+     * @return The key provider in use, defaulting to the AndroidKeyStore.
      */
-    public interface ServerInfo {
-        @GET("./")
-        Call<ResponseBody> getInfo();
+    public static synchronized KeyProvider keys() {
+
+        if (KEYS == null)
+            KEYS = new KeystoreKeyProvider(CTX);
+
+        return KEYS;
+
     }
 
     /**
@@ -79,7 +69,7 @@ public class U2F {
      */
     public interface Registration {
         @POST("v1/register")
-        Call<ResponseBody> register(@Body RequestBody body);
+        Call<ResponseBody> register(@Body U2FJson.Message body);
     }
 
     /**
@@ -87,55 +77,56 @@ public class U2F {
      */
     public interface Authentication {
         @POST("v1/auth")
-        Call<ResponseBody> authenticate(@Body RequestBody body);
+        Call<ResponseBody> authenticate(@Body U2FJson.Message body);
     }
 
     /**
      * This is the U2F entry point for the parsed QR code data, which is returned from
-     * a successful ScanActivity.
+     * a successful ScanActivity. Database lookups happen on {@link Workers#DISK}
+     * and signing on {@link Workers#CRYPTO}, so this returns right away.
      *
-     * @param qrContent The String extracted from a scanned QR.
+     * @param request The request parsed from a scanned QR, or null if the QR
+     *                wasn't a valid 2Q2R request.
      */
-    public static void process(String qrContent) {
+    public static void process(U2FRequest request) {
 
-        if (Utils.identifyQRType(qrContent) == 'R') {
+        if (request instanceof RegistrationRequest) {
 
-            String[] splitQR = qrContent.split(" ");
-            String challenge = splitQR[1];
-            String infoURL = splitQR[2];
-            String userID = splitQR[3];
+            RegistrationRequest reg = (RegistrationRequest) request;
+            String infoURL = reg.infoURL;
 
             if (!infoURL.endsWith("/"))
                 infoURL += "/";
 
-            Retrofit retro = new Retrofit.Builder()
-                    .baseUrl(infoURL)
-                    .build();
+            ServerInfoCache.fetch(infoURL, new InformationCallback(U2FSession.open(reg, null)));
 
-            TEMP.put("challenge", challenge);
-            TEMP.put("infoURL", infoURL);
-            TEMP.put("userID", userID);
-            TEMP.put("qrContent", qrContent);
+        } else if (request instanceof AuthenticationRequest) {
 
-            U2F.ServerInfo info = retro.create(U2F.ServerInfo.class);
-            Call<ResponseBody> infoCall = info.getInfo();
-            infoCall.enqueue(new InformationCallback());
+            final AuthenticationRequest auth = (AuthenticationRequest) request;
+            final long approved = System.nanoTime();
 
-        } else if (Utils.identifyQRType(qrContent) == 'A') {
+            Workers.DISK.execute(new Runnable() {
+                @Override
+                public void run() {
 
-            String[] splitQR = qrContent.split(" ");
-            String base64AppID = splitQR[1];
-            String challenge = splitQR[2];
-            String keyID = splitQR[3];
+                    KeyDatabase.ServerInfo server = DATABASE.getServerInfo(auth.appID);
 
-            TEMP.put("serverCounter", splitQR[4]);
+                    if (server == null) {
+                        Text.displayShort(CTX, R.string.registration_not_found_error);
+                        return;
+                    }
 
-            String appURL = DATABASE.getServerInfo(base64AppID).appURL;
+                    final U2FSession session = U2FSession.open(auth, server);
 
-            if (appURL != null)
-                authenticate(challenge, keyID, base64AppID, appURL);
-            else
-                Text.displayShort(CTX, R.string.registration_not_found_error);
+                    Workers.CRYPTO.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            authenticate(session, approved);
+                        }
+                    });
+
+                }
+            });
 
         } else {
 
@@ -146,168 +137,198 @@ public class U2F {
     }
 
     /**
-     * Sends an error to the server's authentication route, indicating that
-     * the user rejected the authentication attempt.
-     * @param qrContent The full message read from an authentication QR.
+     * Speculatively builds everything in an authentication response that doesn't
+     * need the private key, e.g. while the user is looking at the confirmation
+     * dialog, so that approving only has to sign and send. Opens the request's
+     * session, which {@link #approve} picks back up.
+     * @param request An authentication request awaiting the user's approval.
      */
-    public static void decline(String qrContent) {
+    public static void prepare(final AuthenticationRequest request) {
 
-        try {
+        Workers.DISK.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                KeyDatabase.ServerInfo server = DATABASE.getServerInfo(request.appID);
+
+                if (server == null)
+                    return;
+
+                final U2FSession session = U2FSession.open(request, server);
+
+                Workers.CRYPTO.execute(new Runnable() {
+                    @Override
+                    public void run() {
+
+                        session.withPrepared(U2FResponder.prepareAuthentication(
+                                request.challenge, session.server.appURL, request.counter));
+
+                        // Also loads the key handle into the cache.
+                        keys().isUnlocked(request.keyID);
+
+                    }
+                });
 
-            String[] splitQR = qrContent.split(" ");
-            JSONObject authData = new JSONObject()
-                    .put("successful", false)
-                    .put("data", new JSONObject()
-                        .put("challenge", splitQR[2])
-                        .put("errorMessage", "Authentication declined.")
-                        .put("errorStatus", 401));
-            String appURL = U2F.DATABASE.getServerInfo(qrContent.split(" ")[1]).appURL;
-
-            MediaType media = MediaType.parse("application/json; charset=utf-8");
-
-            RequestBody data = RequestBody.create(media, authData.toString());
-
-            Retrofit retro = new Retrofit.Builder()
-                    .baseUrl(appURL)
-                    .build();
-
-            if (qrContent.charAt(0) == 'R') {
-                U2F.Registration reg = retro.create(U2F.Registration.class);
-                Call<ResponseBody> regCall = reg.register(data);
-                regCall.enqueue(new RegistrationCallback());
-            } else if (qrContent.charAt(0) == 'A') {
-                U2F.Authentication auth = retro.create(U2F.Authentication.class);
-                Call<ResponseBody> authCall = auth.authenticate(data);
-                authCall.enqueue(new AuthenticationCallback());
             }
+        });
 
-        } catch (JSONException e) {
-            e.printStackTrace();
-        } catch (NullPointerException e) {
-            e.printStackTrace();
-        } catch (ArrayIndexOutOfBoundsException e) {
-            e.printStackTrace();
+    }
+
+    /**
+     * Answers an authentication request the user has approved, using the work
+     * done by {@link #prepare} if there is any.
+     * @param request The approved request.
+     */
+    public static void approve(AuthenticationRequest request) {
+
+        final long approved = System.nanoTime();
+        final U2FSession session = U2FSession.get(request.challenge);
+
+        if (session == null || session.server == null) {
+            process(request);
+            return;
         }
 
+        Workers.CRYPTO.execute(new Runnable() {
+            @Override
+            public void run() {
+                authenticate(session, approved);
+            }
+        });
+
     }
 
     /**
-     * Provided with all the necessary data from a U2F registration request,
-     * generates a registration response which conforms exactly to the
-     * specifications outlined in the U2F standard, and sends it to the
-     * "/register" directory of the appURL obtained from the relying
-     * party's {@code infoURL}.
-     *
-     * @param challengeB64 A challenge provided by the server that the device is
-     *                     being registered with [web-safe-Base64 of 32 bytes].
-     * @param serverInfo   Stringified JSON containing server details.
-     * @param userID       The username of the account registering the device, used to
-     *                     prevent multiple registrations of the same device to the
-     *                     same account.
+     * Sends an error to the server's authentication route, indicating that
+     * the user rejected the authentication attempt.
+     * @param request The authentication request being declined.
      */
-    public static void register(String challengeB64, String serverInfo, String userID) {
+    public static void decline(final AuthenticationRequest request) {
 
-        try {
+        Workers.DISK.execute(new Runnable() {
+            @Override
+            public void run() {
 
-            JSONObject info = new JSONObject(serverInfo);
-            String keyID = Utils.genKeyID();
-            PublicKey pubKey = Utils.genKeys(keyID, CTX);
+                KeyDatabase.ServerInfo server = DATABASE.getServerInfo(request.appID);
 
-            if (pubKey != null) {
+                if (server == null)
+                    return;
 
-                if (DATABASE.checkUserAlreadyRegistered(userID, info.getString("appID")))
-                    throw new KeyDatabase.UserAlreadyRegisteredException();
+                U2FSession session = U2FSession.open(request, server).asDeclined();
+                U2FJson.Message data = new U2FJson.Decline(request.challenge,
+                        "Authentication declined.", 401);
 
-                KeyStore ks = KeyStore.getInstance("AndroidKeyStore");
-                ks.load(null);
+                Call<ResponseBody> authCall = Transport.authentication(server.appURL)
+                        .authenticate(data);
+                authCall.enqueue(new AuthenticationCallback(session, data));
 
-                Certificate x509 = ks.getCertificate(keyID);
-                ECPoint keyW = ((ECPublicKey) x509.getPublicKey()).getW();
+            }
+        });
 
-                //////////////////////////////////////////////////////////////
+    }
 
-                byte[] keyX = keyW.getAffineX().toByteArray();
-                byte[] keyY = keyW.getAffineY().toByteArray();
-                byte[] pref = {0x4};
+    /**
+     * Provided with a registration session whose server info has been loaded,
+     * generates a registration response which conforms exactly to the
+     * specifications outlined in the U2F standard, and sends it to the
+     * "/register" directory of the appURL obtained from the relying
+     * party's {@code infoURL}.
+     *
+     * @param session The session of a {@link RegistrationRequest}, whose userID
+     *                is used to prevent multiple registrations of the same device
+     *                to the same account.
+     */
+    public static void register(final U2FSession session) {
 
-                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Workers.DISK.execute(new Runnable() {
+            @Override
+            public void run() {
 
-                bytes.write(pref);
-                bytes.write(keyX, keyX.length - 32, 32);
-                bytes.write(keyY, keyY.length - 32, 32);
+                RegistrationRequest request = (RegistrationRequest) session.request;
 
-                //////////////////////////////////////////////////////////////
+                if (DATABASE.checkUserAlreadyRegistered(request.userID, session.server.appID)) {
+                    session.close();
+                    Text.displayShort(CTX, R.string.existing_registration_error);
+                    return;
+                }
 
-                String clientData = new JSONObject()
-                        .put("typ", "navigator.id.finishEnrollment")
-                        .put("challenge", challengeB64)
-                        .put("origin", info.getString("appURL"))
-                        .toString().replace("\\", "");
+                Workers.CRYPTO.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendRegistration(session, null);
+                    }
+                });
 
-                MessageDigest md = MessageDigest.getInstance("SHA-256");
+            }
+        });
 
-                byte[] futureUse = {0x00};
-                byte[] appParam = md.digest(info.getString("appURL").getBytes());
-                byte[] challenge = md.digest(clientData.getBytes());
-                byte[] keyHandle = Base64.decode(keyID, Base64.URL_SAFE);
-                byte[] publicKey = bytes.toByteArray();
+    }
 
-                bytes.reset();
+    /**
+     * Generates the registration response for a session which has been checked
+     * for an existing registration, using a key from the {@link KeyPool} if one
+     * is available. Runs on {@link Workers#CRYPTO}.
+     *
+     * @param keyID The key to register, if one was already set aside before
+     *              waiting on the {@link AuthWindow}, or null.
+     */
+    private static void sendRegistration(final U2FSession session, String keyID) {
 
-                bytes.write(futureUse);
-                bytes.write(appParam);
-                bytes.write(challenge);
-                bytes.write(keyHandle);
-                bytes.write(publicKey);
+        RegistrationRequest request = (RegistrationRequest) session.request;
+        KeyDatabase.ServerInfo info = session.server;
+        final KeyProvider keys = keys();
+        boolean handedOff = false;
 
-                byte[] signature = Utils.sign(bytes.toByteArray(), keyID);
+        if (keyID == null)
+            keyID = KeyPool.claim();
 
-                //////////////////////////////////////////////////////////////
+        try {
 
-                byte[] reserved = {0x05};
-                byte[] handleLength = {(byte) keyHandle.length};
-                byte[] certificate = x509.getEncoded();
+            // Pooled keys already exist, in which case this just returns their public key.
+            if (keyID == null)
+                keyID = Utils.genKeyID();
 
-                bytes.reset();
+            PublicKey pubKey = keys.generate(keyID);
 
-                bytes.write(reserved);
-                bytes.write(publicKey);
-                bytes.write(handleLength);
-                bytes.write(keyHandle);
-                bytes.write(certificate);
-                bytes.write(signature);
+            if (pubKey != null) {
 
-                byte[] regRes = bytes.toByteArray();
+                final String pendingKeyID = keyID;
 
-                //////////////////////////////////////////////////////////////
+                if (!AuthWindow.isOpen(keyID)) {
 
-                TEMP.put("appID", info.getString("appID"));
-                TEMP.put("keyID", keyID);
-                TEMP.put("appName", info.getString("appName"));
-                TEMP.put("appURL", info.getString("appURL"));
+                    AuthWindow.defer(new Runnable() {
+                        @Override
+                        public void run() {
+                            sendRegistration(session, pendingKeyID);
+                        }
+                    }, new Runnable() {
+                        @Override
+                        public void run() {
+                            session.close();
+                            keys.delete(pendingKeyID);
+                            Text.displayShort(CTX, R.string.auth_timeout_error);
+                        }
+                    });
 
-                Log.i("MONITOR", "The keyID generated is: " + keyID);
+                    handedOff = true;
+                    return;
 
-                JSONObject registrationData = new JSONObject()
-                        .put("successful", true)
-                        .put("data", new JSONObject()
-                            .put("type", "2q2r")
-                            .put("deviceName", DeviceName.getDeviceName())
-                            .put("fcmToken", FirebaseInstanceId.getInstance().getToken())
-                            .put("clientData", Base64.encodeToString(clientData.getBytes(), Base64.URL_SAFE | Base64.NO_PADDING | Base64.NO_WRAP))
-                            .put("registrationData", Base64.encodeToString(regRes, Base64.URL_SAFE | Base64.NO_PADDING | Base64.NO_WRAP)));
+                }
 
-                MediaType media = MediaType.parse("application/json; charset=utf-8");
+                U2FResponder.Response response = U2FResponder.register(keys, keyID,
+                        (ECPublicKey) pubKey, request.challenge, info.appURL);
 
-                RequestBody data = RequestBody.create(media, registrationData.toString());
+                Log.i("MONITOR", "The keyID generated is: " + keyID);
 
-                Retrofit retro = new Retrofit.Builder()
-                        .baseUrl(info.getString("appURL"))
-                        .build();
+                U2FJson.Message data = new U2FJson.RegistrationResponse(
+                        DeviceName.getDeviceName(),
+                        FirebaseInstanceId.getInstance().getToken(),
+                        response.clientData,
+                        response.data);
 
-                U2F.Registration reg = retro.create(U2F.Registration.class);
-                Call<ResponseBody> regCall = reg.register(data);
-                regCall.enqueue(new RegistrationCallback());
+                Call<ResponseBody> regCall = Transport.registration(info.appURL).register(data);
+                regCall.enqueue(new RegistrationCallback(session.withKey(keyID), data));
+                handedOff = true;
 
             } else if (Build.VERSION.SDK_INT < 19) {
 
@@ -319,144 +340,195 @@ public class U2F {
 
             }
 
-        } catch (JSONException | KeyStoreException e) {
-            e.printStackTrace();
-        } catch (CertificateException | NoSuchAlgorithmException e) {
+        } catch (GeneralSecurityException e) {
             e.printStackTrace();
             Text.displayShort(CTX, R.string.key_gen_error);
-        } catch (IOException e) {
+        } catch (RuntimeException e) {
             e.printStackTrace();
             Text.displayShort(CTX, R.string.registration_gen_error);
         } catch (Utils.AuthExpiredException e) {
             e.printStackTrace();
+            AuthWindow.lapsed();
             Text.displayShort(CTX, R.string.auth_timeout_error);
-        } catch (KeyDatabase.UserAlreadyRegisteredException e) {
-            e.printStackTrace();
-            Text.displayShort(CTX, R.string.existing_registration_error);
+        } finally {
+            if (!handedOff) {
+                session.close();
+                keys.delete(keyID);
+            }
         }
 
     }
 
     /**
-     * Authenticates the user. First, the server's info is grabbed from
-     * internal JSON storage using the `base64AppID` as an index. Then,
-     * `challenge` is signed using the private key and the result
-     * is sent back to the server.
+     * Authenticates the user. The request's challenge is signed using the
+     * private key for its key handle, and the result is sent back to the
+     * server. Runs on {@link Workers#CRYPTO}. If the key can't be used until the
+     * user confirms their credential, nothing is built until they have.
      *
-     * @param challengeB64 A web-safe-Base64-encoded challenge of 32
-     *                     bytes sent from the server.
-     * @param keyID        A web-safe-Base64-encoded handle of 16 bytes sent
-     *                     from the server to identify the key it expects to
-     *                     be used for authentication.
-     * @param appID        A web-safe-Base64 encoded server ID.
-     * @param appURL      The base URL for the U2F authentication route.
+     * @param session  The session of an {@link AuthenticationRequest}, with the
+     *                 server looked up from the request's appID.
+     * @param approved When the user approved, from {@link System#nanoTime()}.
      */
-    private static void authenticate(String challengeB64, String keyID, String appID,
-                                     String appURL) {
-
-        try {
+    private static void authenticate(U2FSession session, final long approved) {
 
-            JSONObject clientData = new JSONObject()
-                    .put("typ", "navigator.id.getAssertion")
-                    .put("challenge", challengeB64)
-                    .put("origin", appURL);
+        AuthenticationRequest request = (AuthenticationRequest) session.request;
+        String appURL = session.server.appURL;
 
-            String serializedClientData = clientData.toString();
+        // Preparation may have finished since the session was looked up.
+        U2FSession latest = U2FSession.get(request.challenge);
 
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
+        if (session.prepared == null && latest != null && latest.prepared != null)
+            session = latest;
 
-            byte[] userPresence = {0b00000001};
-            byte[] counter      = Utils.toByteArray(Integer.parseInt(TEMP.get("serverCounter")));
-            byte[] appParam     = md.digest(appURL.getBytes());
-            byte[] challenge    = md.digest(serializedClientData.getBytes());
+        final U2FSession current = session;
 
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
+        if (!AuthWindow.isOpen(request.keyID)) {
 
-            os.write(appParam);
-            os.write(userPresence);
-            os.write(counter);
-            os.write(challenge);
+            AuthWindow.defer(new Runnable() {
+                @Override
+                public void run() {
+                    authenticate(current, approved);
+                }
+            }, new Runnable() {
+                @Override
+                public void run() {
+                    current.close();
+                    Text.displayShort(CTX, R.string.auth_timeout_error);
+                }
+            });
 
-            byte[] signature = Utils.sign(os.toByteArray(), keyID);
+            return;
 
-            os.reset();
+        }
 
-            os.write(userPresence);
-            os.write(counter);
-            os.write(signature);
+        KeyLocks.lock(request.keyID);
 
-            byte[] signatureData = os.toByteArray();
+        try {
 
-            if (signatureData == null) {
-                Toast.makeText(CTX, CTX.getString(R.string.key_access_error), Toast.LENGTH_LONG).show();
+            // Checked again under the key's lock, in case another flow with the
+            // same key has been accepted since the request was screened.
+            if (request.counter <= DATABASE.getCounter(request.keyID)) {
+                session.close();
+                Text.displayLong(CTX, R.string.bad_counter_error);
                 return;
             }
 
-            JSONObject authData = new JSONObject()
-                    .put("successful", true)
-                    .put("data", new JSONObject()
-                        .put("clientData", Base64.encodeToString(serializedClientData.getBytes(), Base64.URL_SAFE | Base64.NO_PADDING | Base64.NO_WRAP))
-                        .put("signatureData", Base64.encodeToString(signatureData, Base64.URL_SAFE | Base64.NO_PADDING | Base64.NO_WRAP)));
+            boolean speculative = session.prepared != null;
+            U2FResponder.PreparedAuthentication prepared = speculative
+                    ? session.prepared
+                    : U2FResponder.prepareAuthentication(request.challenge, appURL,
+                                                         request.counter);
+
+            U2FResponder.Response response = U2FResponder.authenticate(keys(), request.keyID,
+                    prepared);
+
+            // Claimed before the lock is released, since the counter is only
+            // written once the server accepts it.
+            DATABASE.reserveCounter(request.keyID, request.counter);
+
+            U2FJson.Message data = new U2FJson.AuthenticationResponse(response.clientData,
+                    response.data);
+
+            Call<ResponseBody> authCall = Transport.authentication(appURL).authenticate(data);
+            authCall.enqueue(new AuthenticationCallback(session, data));
 
-            MediaType media = MediaType.parse("application/json; charset=utf-8");
+            Log.i("MONITOR", "Approval to authentication sent took " +
+                    Keys.millisSince(approved) + " ms (" +
+                    (speculative ? "prepared ahead" : "not prepared") + ")");
 
-            RequestBody data = RequestBody.create(media, authData.toString());
+        } catch (GeneralSecurityException e) {
 
-            Retrofit retro = new Retrofit.Builder()
-                    .baseUrl(appURL)
-                    .build();
+            e.printStackTrace();
+            session.close();
+            Text.displayLong(CTX, R.string.key_access_error);
 
-            TEMP.put("keyID", keyID);
+        } catch (Utils.AuthExpiredException e) {
 
-            U2F.Authentication auth = retro.create(U2F.Authentication.class);
-            Call<ResponseBody> authCall = auth.authenticate(data);
-            authCall.enqueue(new AuthenticationCallback());
+            e.printStackTrace();
+            AuthWindow.lapsed();
+            session.close();
+            Text.displayShort(CTX, R.string.auth_timeout_error);
 
         } catch (Exception e) {
 
             e.printStackTrace();
+            session.close();
             Text.displayShort(CTX, R.string.authentication_gen_error);
 
+        } finally {
+
+            KeyLocks.unlock(request.keyID);
+
         }
 
     }
 
     /**
-     * Describes what the activity should do once information has either been
-     * loaded from the server, or once the attempt failed.
+     * Saves a registration locally once the server has accepted it.
+     * @param session A registration session with its server and generated key.
      */
-    private static class InformationCallback implements Callback<ResponseBody> {
+    static void completeRegistration(U2FSession session) {
 
-        @Override
-        public void onResponse(Call<ResponseBody> call, Response<ResponseBody> response) {
+        KeyDatabase.ServerInfo info = session.server;
 
-            try {
+        if (!DATABASE.hasServer(info.appID))
+            DATABASE.insertNewServer(info.appID, info.appURL, info.appName);
 
-                String body = response.body().string();
-                JSONObject serverData = new JSONObject(body);
+        DATABASE.insertNewKey(session.keyID, info.appID,
+                              ((RegistrationRequest) session.request).userID);
 
-                Intent intent = new Intent(CTX, AuthDialog.class);
-                intent.putExtra("serverName", serverData.getString("appName"));
-                intent.putExtra("serverURL", serverData.getString("appURL"));
-                intent.putExtra("authData", TEMP.get("qrContent"));
-                intent.putExtra("missed", 0);
-                intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+    }
 
-                TEMP.put("serverData", body);
+    /**
+     * Records an authentication locally once the server has accepted it. Only
+     * approvals count as a use of the key; declines just advance its counter.
+     * @param session An authentication session.
+     */
+    static void completeAuthentication(U2FSession session) {
 
-                CTX.startActivity(intent);
+        int counter = ((AuthenticationRequest) session.request).counter;
 
-            } catch (IOException | JSONException e) {
+        if (session.declined)
+            DATABASE.advanceCounter(session.keyID, counter);
+        else
+            DATABASE.recordUse(session.keyID, counter);
 
-                e.printStackTrace();
+    }
 
-            }
+    /**
+     * Describes what the activity should do once information has either been
+     * loaded from the server, or once the attempt failed.
+     */
+    private static class InformationCallback implements ServerInfoCache.Listener {
+
+        private final U2FSession session;
 
+        InformationCallback(U2FSession session) {
+            this.session = session;
         }
 
         @Override
-        public void onFailure(Call<ResponseBody> call, Throwable t) {
+        public void onInfo(KeyDatabase.ServerInfo info) {
+
+            session.withServer(info);
+
+            Intent intent = new Intent(CTX, AuthDialog.class);
+            intent.putExtra("serverName", info.appName);
+            intent.putExtra("serverURL", info.appURL);
+            intent.putExtra("request", session.request);
+            intent.putExtra("missed", 0);
+            intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+
+            Transport.prewarm(info.appURL);
+
+            CTX.startActivity(intent);
+
+        }
+
+        @Override
+        public void onError(Throwable t) {
             t.printStackTrace();
+            session.close();
             Text.displayShort(CTX, R.string.info_request_error);
         }
 
@@ -468,6 +540,18 @@ public class U2F {
      */
     private static class RegistrationCallback implements Callback<ResponseBody> {
 
+        private final U2FSession session;
+        private final U2FJson.Message message;
+
+        /**
+         * @param session The registration, to be saved once the server accepts it.
+         * @param message The request, kept for the {@link Outbox}.
+         */
+        RegistrationCallback(U2FSession session, U2FJson.Message message) {
+            this.session = session;
+            this.message = message;
+        }
+
         @Override
         public void onResponse(Call<ResponseBody> call, Response<ResponseBody> response) {
 
@@ -479,27 +563,28 @@ public class U2F {
                 e.printStackTrace();
             }
 
-            if (response.code() == 200) {
-
-                if (!DATABASE.hasServer(TEMP.get("appID")))
-                    DATABASE.insertNewServer(TEMP.get("appID"),
-                                             TEMP.get("appURL"),
-                                             TEMP.get("appName"));
-
-                DATABASE.insertNewKey(TEMP.get("keyID"),
-                                      TEMP.get("appID"),
-                                      TEMP.get("userID"));
-
-            }
+            if (response.code() == 200)
+                completeRegistration(session);
 
+            session.close();
             Text.displayShort(CTX, body);
 
         }
 
         @Override
         public void onFailure(Call<ResponseBody> call, Throwable t) {
+
             t.printStackTrace();
-            Text.displayShort(CTX, R.string.registration_request_error);
+
+            session.close();
+
+            if (t instanceof IOException && !call.isCanceled()) {
+                Outbox.enqueue(Outbox.ROUTE_REGISTER, U2FJson.toString(message), session);
+                Text.displayShort(CTX, R.string.response_queued);
+            } else {
+                Text.displayShort(CTX, R.string.registration_request_error);
+            }
+
         }
 
     }
@@ -510,13 +595,28 @@ public class U2F {
      */
     private static class AuthenticationCallback implements Callback<ResponseBody> {
 
+        private final U2FSession session;
+        private final U2FJson.Message message;
+
+        /**
+         * @param session The authentication, whose key and counter are recorded
+         *                once the server accepts the response.
+         * @param message The request, kept for the {@link Outbox}.
+         */
+        AuthenticationCallback(U2FSession session, U2FJson.Message message) {
+            this.session = session;
+            this.message = message;
+        }
+
         @Override
         public void onResponse(Call<ResponseBody> call, Response<ResponseBody> response) {
 
+            session.close();
+
             try {
 
                 if (response.code() == 200) {
-                    DATABASE.setCounter(TEMP.get("keyID"), TEMP.get("serverCounter"));
+                    completeAuthentication(session);
                     Text.displayShort(CTX, response.body().string());
                 } else {
                     System.out.println("Server says: \"" + response.body().string() + "\"");
@@ -533,8 +633,18 @@ public class U2F {
 
         @Override
         public void onFailure(Call<ResponseBody> call, Throwable t) {
+
             t.printStackTrace();
-            Text.displayShort(CTX, R.string.authentication_request_error);
+
+            session.close();
+
+            if (t instanceof IOException && !call.isCanceled()) {
+                Outbox.enqueue(Outbox.ROUTE_AUTH, U2FJson.toString(message), session);
+                Text.displayShort(CTX, R.string.response_queued);
+            } else {
+                Text.displayShort(CTX, R.string.authentication_request_error);
+            }
+
         }
 
     }
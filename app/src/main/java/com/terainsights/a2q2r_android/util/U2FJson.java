@@ -0,0 +1,269 @@
+package com.terainsights.a2q2r_android.util;
+
+import android.util.JsonReader;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import retrofit2.Converter;
+import retrofit2.Retrofit;
+
+/**
+ * The JSON messages exchanged with a 2Q2R server. Outgoing messages are
+ * streamed directly into the request body by a {@link JsonSink}, and server
+ * info documents are parsed incrementally from the response stream.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public class U2FJson {
+
+    public static final MediaType MEDIA_TYPE = MediaType.parse("application/json; charset=utf-8");
+
+    /**
+     * Lets Retrofit send any {@link Message} as a streamed request body.
+     */
+    public static final Converter.Factory FACTORY = new Converter.Factory() {
+
+        @Override
+        public Converter<?, RequestBody> requestBodyConverter(Type type,
+                Annotation[] parameterAnnotations, Annotation[] methodAnnotations,
+                Retrofit retrofit) {
+
+            if (!(type instanceof Class) || !Message.class.isAssignableFrom((Class<?>) type))
+                return null;
+
+            return new Converter<Message, RequestBody>() {
+                @Override
+                public RequestBody convert(Message message) {
+                    return body(message);
+                }
+            };
+
+        }
+
+    };
+
+    /**
+     * A JSON message which knows how to write itself.
+     */
+    public interface Message {
+        void writeTo(JsonSink out) throws IOException;
+    }
+
+    /**
+     * The device's answer to a registration request.
+     */
+    public static class RegistrationResponse implements Message {
+
+        private final String deviceName;
+        private final String fcmToken;
+        private final byte[] clientData;
+        private final byte[] registrationData;
+
+        public RegistrationResponse(String deviceName, String fcmToken, byte[] clientData,
+                                    byte[] registrationData) {
+            this.deviceName = deviceName;
+            this.fcmToken = fcmToken;
+            this.clientData = clientData;
+            this.registrationData = registrationData;
+        }
+
+        @Override
+        public void writeTo(JsonSink out) throws IOException {
+            out.beginObject()
+                    .name("successful").value(true)
+                    .name("data").beginObject()
+                        .name("type").value("2q2r")
+                        .name("deviceName").value(deviceName)
+                        .name("fcmToken").value(fcmToken)
+                        .name("clientData").valueBase64(clientData)
+                        .name("registrationData").valueBase64(registrationData)
+                    .endObject()
+               .endObject();
+        }
+
+    }
+
+    /**
+     * The device's answer to an authentication request.
+     */
+    public static class AuthenticationResponse implements Message {
+
+        private final byte[] clientData;
+        private final byte[] signatureData;
+
+        public AuthenticationResponse(byte[] clientData, byte[] signatureData) {
+            this.clientData = clientData;
+            this.signatureData = signatureData;
+        }
+
+        @Override
+        public void writeTo(JsonSink out) throws IOException {
+            out.beginObject()
+                    .name("successful").value(true)
+                    .name("data").beginObject()
+                        .name("clientData").valueBase64(clientData)
+                        .name("signatureData").valueBase64(signatureData)
+                    .endObject()
+               .endObject();
+        }
+
+    }
+
+    /**
+     * Tells the server that the user rejected a request.
+     */
+    public static class Decline implements Message {
+
+        private final String challenge;
+        private final String errorMessage;
+        private final int errorStatus;
+
+        public Decline(String challenge, String errorMessage, int errorStatus) {
+            this.challenge = challenge;
+            this.errorMessage = errorMessage;
+            this.errorStatus = errorStatus;
+        }
+
+        @Override
+        public void writeTo(JsonSink out) throws IOException {
+            out.beginObject()
+                    .name("successful").value(false)
+                    .name("data").beginObject()
+                        .name("challenge").value(challenge)
+                        .name("errorMessage").value(errorMessage)
+                        .name("errorStatus").value(errorStatus)
+                    .endObject()
+               .endObject();
+        }
+
+    }
+
+    /**
+     * A message that was serialized earlier, e.g. by the {@link Outbox}.
+     */
+    public static class Raw implements Message {
+
+        private final String json;
+
+        public Raw(String json) {
+            this.json = json;
+        }
+
+        @Override
+        public void writeTo(JsonSink out) throws IOException {
+            out.raw(json);
+        }
+
+    }
+
+    /**
+     * Builds the U2F client data, the exact bytes of which are hashed into the
+     * signed message and sent to the server.
+     * @param typ       The U2F operation type.
+     * @param challenge The server's web-safe-Base64 challenge.
+     * @param origin    The server's appURL.
+     * @return The UTF-8 bytes of the client data JSON.
+     */
+    public static byte[] clientData(String typ, String challenge, String origin) {
+
+        try {
+
+            Buffer buffer = new Buffer();
+            new JsonSink(buffer).beginObject()
+                    .name("typ").value(typ)
+                    .name("challenge").value(challenge)
+                    .name("origin").value(origin)
+                    .endObject();
+
+            return buffer.readByteArray();
+
+        } catch (IOException e) {
+            throw new AssertionError(e); // Buffers don't throw.
+        }
+
+    }
+
+    /**
+     * Wraps a message in a request body which serializes it straight into the
+     * outgoing stream when OkHttp writes the request.
+     */
+    public static RequestBody body(final Message message) {
+
+        return new RequestBody() {
+
+            @Override
+            public MediaType contentType() {
+                return MEDIA_TYPE;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                message.writeTo(new JsonSink(sink));
+            }
+
+        };
+
+    }
+
+    /**
+     * @return The message serialized to a String, for storage.
+     */
+    public static String toString(Message message) {
+
+        try {
+            Buffer buffer = new Buffer();
+            message.writeTo(new JsonSink(buffer));
+            return buffer.readUtf8();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+
+    }
+
+    /**
+     * Reads a server info document without materializing the whole body,
+     * skipping any fields the app doesn't use.
+     * @param in The response body's character stream.
+     * @return The server's appID, appName and appURL.
+     * @throws IOException If the document is malformed or incomplete.
+     */
+    public static KeyDatabase.ServerInfo readServerInfo(Reader in) throws IOException {
+
+        KeyDatabase.ServerInfo info = new KeyDatabase.ServerInfo();
+        JsonReader reader = new JsonReader(in);
+
+        try {
+
+            reader.beginObject();
+
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "appID":   info.appID = reader.nextString();   break;
+                    case "appName": info.appName = reader.nextString(); break;
+                    case "appURL":  info.appURL = reader.nextString();  break;
+                    default:        reader.skipValue();
+                }
+            }
+
+            reader.endObject();
+
+        } catch (IllegalStateException e) {
+            throw new IOException("Unexpected server info format.", e);
+        }
+
+        if (info.appID == null || info.appName == null || info.appURL == null)
+            throw new IOException("Server info is missing required fields.");
+
+        return info;
+
+    }
+
+}
@@ -0,0 +1,257 @@
+package com.terainsights.a2q2r_android.util;
+
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECPoint;
+
+/**
+ * Builds and parses the raw binary messages defined by the FIDO U2F raw message
+ * format. Every message is written into a single {@link ByteBuffer} sized
+ * exactly up front, instead of being assembled through intermediate streams.
+ * Uses no Android APIs, so the formats can be round-tripped on a plain JVM.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public class U2FMessageCodec {
+
+    public static final byte REGISTRATION_RESERVED = 0x05;
+    public static final byte UNCOMPRESSED_POINT = 0x04;
+    public static final byte USER_PRESENT = 0x01;
+
+    /**
+     * The length of an uncompressed P-256 point: a marker byte, then X and Y.
+     */
+    public static final int PUBLIC_KEY_LENGTH = 65;
+
+    private static final int COORDINATE_LENGTH = 32;
+
+    /**
+     * Encodes a P-256 public key as an uncompressed point.
+     * @param key An EC public key on secp256r1.
+     * @return The 65-byte point.
+     */
+    public static byte[] encodePublicKey(ECPublicKey key) {
+
+        ECPoint w = key.getW();
+        ByteBuffer out = ByteBuffer.allocate(PUBLIC_KEY_LENGTH);
+
+        out.put(UNCOMPRESSED_POINT);
+        putCoordinate(out, w.getAffineX());
+        putCoordinate(out, w.getAffineY());
+
+        return out.array();
+
+    }
+
+    /**
+     * Builds the data signed during registration.
+     * @param appParam       SHA-256 of the appURL.
+     * @param challengeParam SHA-256 of the client data.
+     * @param keyHandle      The raw key handle.
+     * @param publicKey      The encoded public key.
+     */
+    public static byte[] registrationSignedData(byte[] appParam, byte[] challengeParam,
+                                                byte[] keyHandle, byte[] publicKey) {
+
+        return ByteBuffer.allocate(1 + appParam.length + challengeParam.length +
+                                   keyHandle.length + publicKey.length)
+                .put((byte) 0x00)
+                .put(appParam)
+                .put(challengeParam)
+                .put(keyHandle)
+                .put(publicKey)
+                .array();
+
+    }
+
+    /**
+     * Builds the raw registration response sent to the server.
+     * @param publicKey   The encoded public key.
+     * @param keyHandle   The raw key handle, at most 255 bytes.
+     * @param certificate The DER-encoded attestation certificate.
+     * @param signature   The signature over {@link #registrationSignedData}.
+     */
+    public static byte[] registrationResponse(byte[] publicKey, byte[] keyHandle,
+                                              byte[] certificate, byte[] signature) {
+
+        if (keyHandle.length > 0xFF)
+            throw new IllegalArgumentException("Key handle is too long.");
+
+        return ByteBuffer.allocate(1 + publicKey.length + 1 + keyHandle.length +
+                                   certificate.length + signature.length)
+                .put(REGISTRATION_RESERVED)
+                .put(publicKey)
+                .put((byte) keyHandle.length)
+                .put(keyHandle)
+                .put(certificate)
+                .put(signature)
+                .array();
+
+    }
+
+    /**
+     * Builds the data signed during authentication.
+     * @param appParam       SHA-256 of the appURL.
+     * @param userPresence   The user presence flags.
+     * @param counter        The authentication counter.
+     * @param challengeParam SHA-256 of the client data.
+     */
+    public static byte[] authenticationSignedData(byte[] appParam, byte userPresence,
+                                                  int counter, byte[] challengeParam) {
+
+        return ByteBuffer.allocate(appParam.length + 1 + 4 + challengeParam.length)
+                .put(appParam)
+                .put(userPresence)
+                .putInt(counter)
+                .put(challengeParam)
+                .array();
+
+    }
+
+    /**
+     * Builds the raw authentication response sent to the server.
+     * @param userPresence The user presence flags.
+     * @param counter      The authentication counter.
+     * @param signature    The signature over {@link #authenticationSignedData}.
+     */
+    public static byte[] authenticationResponse(byte userPresence, int counter,
+                                                byte[] signature) {
+
+        return ByteBuffer.allocate(1 + 4 + signature.length)
+                .put(userPresence)
+                .putInt(counter)
+                .put(signature)
+                .array();
+
+    }
+
+    /**
+     * The fields of a raw registration response.
+     */
+    public static class Registration {
+        public byte[] publicKey;
+        public byte[] keyHandle;
+        public byte[] certificate;
+        public byte[] signature;
+    }
+
+    /**
+     * The fields of a raw authentication response.
+     */
+    public static class Authentication {
+        public byte userPresence;
+        public int counter;
+        public byte[] signature;
+    }
+
+    /**
+     * Splits a raw registration response into its fields.
+     * @throws IllegalArgumentException If the message is malformed.
+     */
+    public static Registration parseRegistrationResponse(byte[] message) {
+
+        try {
+
+            ByteBuffer in = ByteBuffer.wrap(message);
+            Registration result = new Registration();
+
+            if (in.get() != REGISTRATION_RESERVED)
+                throw new IllegalArgumentException("Bad reserved byte.");
+
+            result.publicKey = take(in, PUBLIC_KEY_LENGTH);
+
+            if (result.publicKey[0] != UNCOMPRESSED_POINT)
+                throw new IllegalArgumentException("Public key is not an uncompressed point.");
+
+            result.keyHandle = take(in, in.get() & 0xFF);
+            result.certificate = take(in, derLength(in));
+            result.signature = take(in, in.remaining());
+
+            return result;
+
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Registration response is truncated.", e);
+        }
+
+    }
+
+    /**
+     * Splits a raw authentication response into its fields.
+     * @throws IllegalArgumentException If the message is malformed.
+     */
+    public static Authentication parseAuthenticationResponse(byte[] message) {
+
+        try {
+
+            ByteBuffer in = ByteBuffer.wrap(message);
+            Authentication result = new Authentication();
+
+            result.userPresence = in.get();
+            result.counter = in.getInt();
+            result.signature = take(in, in.remaining());
+
+            return result;
+
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Authentication response is truncated.", e);
+        }
+
+    }
+
+    /**
+     * Writes a coordinate as exactly 32 big-endian bytes. {@link BigInteger#toByteArray()}
+     * may add a sign byte or drop leading zeroes, so it is normalized here.
+     */
+    private static void putCoordinate(ByteBuffer out, BigInteger coordinate) {
+
+        byte[] bytes = coordinate.toByteArray();
+
+        if (bytes.length >= COORDINATE_LENGTH) {
+            out.put(bytes, bytes.length - COORDINATE_LENGTH, COORDINATE_LENGTH);
+        } else {
+            for (int i = bytes.length; i < COORDINATE_LENGTH; i++)
+                out.put((byte) 0);
+            out.put(bytes);
+        }
+
+    }
+
+    /**
+     * Measures the DER element starting at the buffer's position, including its
+     * tag and length bytes, without consuming anything.
+     */
+    private static int derLength(ByteBuffer in) {
+
+        int start = in.position();
+        int lengthByte = in.get(start + 1) & 0xFF;
+
+        if (lengthByte < 0x80)
+            return 2 + lengthByte;
+
+        int count = lengthByte & 0x7F;
+
+        if (count == 0 || count > 3)
+            throw new IllegalArgumentException("Unsupported DER length.");
+
+        int length = 0;
+
+        for (int i = 0; i < count; i++)
+            length = (length << 8) | (in.get(start + 2 + i) & 0xFF);
+
+        return 2 + count + length;
+
+    }
+
+    private static byte[] take(ByteBuffer in, int length) {
+
+        byte[] result = new byte[length];
+        in.get(result);
+
+        return result;
+
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.terainsights.a2q2r_android.util;
+
+import android.os.Parcelable;
+import android.util.Patterns;
+
+/**
+ * A request from a 2Q2R server, read from a QR or a push notification. Requests
+ * are parsed and validated once, in a single pass over the text, and then passed
+ * around (including through intents) as immutable typed objects. The QR format
+ * is documented <a href="https://github.com/alinVD/2Q2R-lib/wiki/QR-code-protocol"
+ * >here</a>.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public abstract class U2FRequest implements Parcelable {
+
+    /**
+     * The server's web-safe-Base64 challenge of 32 bytes.
+     */
+    public final String challenge;
+
+    U2FRequest(String challenge) {
+        this.challenge = challenge;
+    }
+
+    /**
+     * Parses and validates the text of a 2Q2R QR.
+     * @param text The String decoded from a QR or received in a notification.
+     * @return A {@link RegistrationRequest} or {@link AuthenticationRequest}, or
+     *         null if the text isn't a valid 2Q2R request.
+     */
+    public static U2FRequest parse(String text) {
+
+        if (text == null || text.length() < 2 || text.charAt(1) != ' ')
+            return null;
+
+        char type = text.charAt(0);
+        String[] fields = new String[4];
+        int count = split(text, 2, fields);
+
+        if (type == 'R' && count == 3) {
+
+            if (WebSafeBase64.decodedLength(fields[0]) != 32)
+                return null;
+
+            if (!Patterns.WEB_URL.matcher(fields[1]).matches())
+                return null;
+
+            return new RegistrationRequest(fields[0], fields[1], fields[2]);
+
+        } else if (type == 'A' && count == 4) {
+
+            if (WebSafeBase64.decodedLength(fields[0]) != 32)
+                return null;
+
+            if (WebSafeBase64.decodedLength(fields[1]) != 32)
+                return null;
+
+            int counter;
+
+            try {
+                counter = Integer.parseInt(fields[3]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            return new AuthenticationRequest(fields[0], fields[1], fields[2], counter);
+
+        }
+
+        return null;
+
+    }
+
+    /**
+     * Splits space-separated fields in one pass.
+     * @param text   The text to split.
+     * @param start  Where the first field starts.
+     * @param fields Receives the fields.
+     * @return The number of fields, or -1 if there are too many or any is empty.
+     */
+    private static int split(String text, int start, String[] fields) {
+
+        int count = 0;
+
+        while (start <= text.length()) {
+
+            int end = text.indexOf(' ', start);
+
+            if (end < 0)
+                end = text.length();
+
+            if (end == start || count == fields.length)
+                return -1;
+
+            fields[count++] = text.substring(start, end);
+            start = end + 1;
+
+        }
+
+        return count;
+
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+}
@@ -0,0 +1,124 @@
+package com.terainsights.a2q2r_android.util;
+
+import java.security.GeneralSecurityException;
+import java.security.interfaces.ECPublicKey;
+
+/**
+ * Computes the device's answers to U2F requests: builds the client data, hashes
+ * it, signs with a {@link Signer} and assembles the raw response. Uses no
+ * Android APIs, so with a {@link SoftwareKeyProvider} the whole pipeline runs
+ * on a plain JVM.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public class U2FResponder {
+
+    /**
+     * The two halves of a response: the client data whose hash was signed, and
+     * the raw U2F response message.
+     */
+    public static class Response {
+
+        public final byte[] clientData;
+        public final byte[] data;
+
+        Response(byte[] clientData, byte[] data) {
+            this.clientData = clientData;
+            this.data = data;
+        }
+
+    }
+
+    /**
+     * Answers a registration request with a freshly generated key.
+     * @param keys      The provider holding the key.
+     * @param keyID     The handle of the key to register.
+     * @param publicKey The key's public key.
+     * @param challenge The server's web-safe-Base64 challenge.
+     * @param appURL    The server's appURL.
+     */
+    public static Response register(KeyProvider keys, String keyID, ECPublicKey publicKey,
+                                    String challenge, String appURL)
+            throws GeneralSecurityException, Utils.AuthExpiredException {
+
+        byte[] encodedKey = U2FMessageCodec.encodePublicKey(publicKey);
+        byte[] clientData = U2FJson.clientData("navigator.id.finishEnrollment", challenge, appURL);
+        byte[] keyHandle = WebSafeBase64.decode(keyID);
+
+        byte[] signature = keys.sign(keyID, U2FMessageCodec.registrationSignedData(
+                Crypto.appParam(appURL), Crypto.sha256(clientData), keyHandle, encodedKey));
+
+        return new Response(clientData, U2FMessageCodec.registrationResponse(
+                encodedKey, keyHandle, keys.certificate(keyID), signature));
+
+    }
+
+    /**
+     * Everything in an authentication response that doesn't need the private
+     * key, which can be built before the user has approved.
+     */
+    public static class PreparedAuthentication {
+
+        public final byte[] clientData;
+        public final byte[] signedData;
+        public final int counter;
+
+        PreparedAuthentication(byte[] clientData, byte[] signedData, int counter) {
+            this.clientData = clientData;
+            this.signedData = signedData;
+            this.counter = counter;
+        }
+
+    }
+
+    /**
+     * Builds the client data and the message to be signed for an authentication,
+     * asserting user presence.
+     * @param challenge The server's web-safe-Base64 challenge.
+     * @param appURL    The server's appURL.
+     * @param counter   The authentication counter sent by the server.
+     */
+    public static PreparedAuthentication prepareAuthentication(String challenge, String appURL,
+                                                               int counter) {
+
+        byte[] clientData = U2FJson.clientData("navigator.id.getAssertion", challenge, appURL);
+        byte[] signedData = U2FMessageCodec.authenticationSignedData(Crypto.appParam(appURL),
+                U2FMessageCodec.USER_PRESENT, counter, Crypto.sha256(clientData));
+
+        return new PreparedAuthentication(clientData, signedData, counter);
+
+    }
+
+    /**
+     * Signs a prepared authentication.
+     * @param signer   Signs with the registered key.
+     * @param keyID    The handle of the registered key.
+     * @param prepared The output of {@link #prepareAuthentication}.
+     */
+    public static Response authenticate(Signer signer, String keyID,
+                                        PreparedAuthentication prepared)
+            throws GeneralSecurityException, Utils.AuthExpiredException {
+
+        byte[] signature = signer.sign(keyID, prepared.signedData);
+
+        return new Response(prepared.clientData, U2FMessageCodec.authenticationResponse(
+                U2FMessageCodec.USER_PRESENT, prepared.counter, signature));
+
+    }
+
+    /**
+     * Answers an authentication request, asserting user presence.
+     * @param signer    Signs with the registered key.
+     * @param keyID     The handle of the registered key.
+     * @param challenge The server's web-safe-Base64 challenge.
+     * @param appURL    The server's appURL.
+     * @param counter   The authentication counter sent by the server.
+     */
+    public static Response authenticate(Signer signer, String keyID, String challenge,
+                                        String appURL, int counter)
+            throws GeneralSecurityException, Utils.AuthExpiredException {
+        return authenticate(signer, keyID, prepareAuthentication(challenge, appURL, counter));
+    }
+
+}
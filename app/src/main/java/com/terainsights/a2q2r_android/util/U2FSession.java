@@ -0,0 +1,299 @@
+package com.terainsights.a2q2r_android.util;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The state of a single U2F registration or authentication, from the moment
+ * its request is parsed until the server has answered. Sessions are immutable;
+ * each step of a flow derives a new one and hands it to the next callback, so
+ * overlapping flows, e.g. a push arriving while a scan is in progress, never
+ * see each other's state.
+ *
+ * Open sessions are kept in a registry keyed by challenge, so that a flow can
+ * be picked back up from another component, e.g. by the {@code AuthDialog}
+ * once the user confirms. Sessions older than {@link #LIFETIME_MILLIS} are
+ * evicted, as is the oldest session once more than {@link #MAX_SESSIONS} are
+ * open, so abandoned flows can't accumulate.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public class U2FSession {
+
+    /**
+     * How long a session stays usable; the same as the server's challenge.
+     */
+    public static final long LIFETIME_MILLIS = Outbox.CHALLENGE_LIFETIME_MILLIS;
+
+    /**
+     * The maximum number of sessions open at once.
+     */
+    public static final int MAX_SESSIONS = 16;
+
+    private static final ConcurrentHashMap<String, U2FSession> REGISTRY =
+            new ConcurrentHashMap<>();
+
+    /**
+     * The parsed request which started the flow.
+     */
+    public final U2FRequest request;
+
+    /**
+     * The server the request came from, or null until its info has been loaded.
+     */
+    public final KeyDatabase.ServerInfo server;
+
+    /**
+     * The key used to answer the request, or null until a registration has
+     * generated one.
+     */
+    public final String keyID;
+
+    /**
+     * When the flow started, in epoch millis.
+     */
+    public final long started;
+
+    /**
+     * The unsigned part of an authentication response, if it has been built
+     * ahead of time, or null.
+     */
+    public final U2FResponder.PreparedAuthentication prepared;
+
+    /**
+     * Whether the user declined the request, in which case the server is sent
+     * an error instead of a signature and the key doesn't count as used.
+     */
+    public final boolean declined;
+
+    private U2FSession(U2FRequest request, KeyDatabase.ServerInfo server, String keyID,
+                       long started, U2FResponder.PreparedAuthentication prepared,
+                       boolean declined) {
+        this.request = request;
+        this.server = server;
+        this.keyID = keyID;
+        this.started = started;
+        this.prepared = prepared;
+        this.declined = declined;
+    }
+
+    /**
+     * Starts a new flow and registers it under the request's challenge,
+     * replacing any earlier session for the same challenge.
+     * @param request The parsed request.
+     * @param server  The request's server, or null if it isn't known yet.
+     * @return The new session.
+     */
+    public static U2FSession open(U2FRequest request, KeyDatabase.ServerInfo server) {
+
+        String keyID = request instanceof AuthenticationRequest
+                ? ((AuthenticationRequest) request).keyID
+                : null;
+
+        U2FSession session = new U2FSession(request, server, keyID, System.currentTimeMillis(),
+                null, false);
+
+        evict();
+        REGISTRY.put(request.challenge, session);
+
+        return session;
+
+    }
+
+    /**
+     * @param challenge A request's challenge.
+     * @return The open session for it, or null if there is none or it has expired.
+     */
+    public static U2FSession get(String challenge) {
+
+        U2FSession session = REGISTRY.get(challenge);
+
+        if (session != null && session.isExpired(System.currentTimeMillis())) {
+            REGISTRY.remove(challenge, session);
+            return null;
+        }
+
+        return session;
+
+    }
+
+    /**
+     * Removes a challenge's session from the registry, e.g. because the user
+     * declined it.
+     */
+    public static void close(String challenge) {
+        REGISTRY.remove(challenge);
+    }
+
+    /**
+     * Removes this session from the registry once its flow has finished. Leaves
+     * any newer session for the same challenge alone.
+     */
+    public void close() {
+        REGISTRY.remove(request.challenge, this);
+    }
+
+    /**
+     * @return The number of sessions currently open.
+     */
+    public static int count() {
+        return REGISTRY.size();
+    }
+
+    /**
+     * @return A copy of this session with the server's info filled in, which
+     *         takes its place in the registry if it is still open.
+     */
+    public U2FSession withServer(KeyDatabase.ServerInfo server) {
+        return replace(new U2FSession(request, server, keyID, started, prepared, declined));
+    }
+
+    /**
+     * @return A copy of this session answering with the given key, which takes
+     *         its place in the registry if it is still open.
+     */
+    public U2FSession withKey(String keyID) {
+        return replace(new U2FSession(request, server, keyID, started, prepared, declined));
+    }
+
+    /**
+     * @return A copy of this session with its authentication response prepared,
+     *         which takes its place in the registry if it is still open.
+     */
+    public U2FSession withPrepared(U2FResponder.PreparedAuthentication prepared) {
+        return replace(new U2FSession(request, server, keyID, started, prepared, declined));
+    }
+
+    /**
+     * @return A copy of this session marked as declined by the user, which
+     *         takes its place in the registry if it is still open.
+     */
+    public U2FSession asDeclined() {
+        return replace(new U2FSession(request, server, keyID, started, prepared, true));
+    }
+
+    /**
+     * @return The time in epoch millis at which the server will no longer accept
+     *         an answer to this session's challenge.
+     */
+    public long deadline() {
+        return started + LIFETIME_MILLIS;
+    }
+
+    public boolean isExpired(long now) {
+        return now >= deadline();
+    }
+
+    /**
+     * Serializes what is needed to complete the flow locally, for the {@link Outbox}.
+     */
+    public JSONObject toState() throws JSONException {
+
+        JSONObject state = new JSONObject()
+                .put("challenge", request.challenge)
+                .put("keyID", keyID)
+                .put("started", started);
+
+        if (server != null) {
+            state.put("appID", server.appID)
+                 .put("appName", server.appName)
+                 .put("appURL", server.appURL);
+        }
+
+        if (request instanceof RegistrationRequest) {
+
+            RegistrationRequest reg = (RegistrationRequest) request;
+            state.put("type", "R")
+                 .put("infoURL", reg.infoURL)
+                 .put("userID", reg.userID);
+
+        } else {
+
+            AuthenticationRequest auth = (AuthenticationRequest) request;
+            state.put("type", "A")
+                 .put("requestAppID", auth.appID)
+                 .put("counter", auth.counter)
+                 .put("declined", declined);
+
+        }
+
+        return state;
+
+    }
+
+    /**
+     * Restores a session serialized by {@link #toState()}, without registering it.
+     */
+    public static U2FSession fromState(JSONObject state) throws JSONException {
+
+        U2FRequest request;
+
+        if ("R".equals(state.getString("type"))) {
+            request = new RegistrationRequest(state.getString("challenge"),
+                                              state.getString("infoURL"),
+                                              state.getString("userID"));
+        } else {
+            request = new AuthenticationRequest(state.getString("requestAppID"),
+                                                state.getString("challenge"),
+                                                state.getString("keyID"),
+                                                state.getInt("counter"));
+        }
+
+        KeyDatabase.ServerInfo server = null;
+
+        if (state.has("appURL")) {
+            server = new KeyDatabase.ServerInfo();
+            server.appID = state.optString("appID", null);
+            server.appName = state.optString("appName", null);
+            server.appURL = state.getString("appURL");
+        }
+
+        // Entries queued before declines were recorded count as approvals.
+        return new U2FSession(request, server, state.optString("keyID", null),
+                state.getLong("started"), null, state.optBoolean("declined", false));
+
+    }
+
+    private U2FSession replace(U2FSession next) {
+        REGISTRY.replace(request.challenge, this, next);
+        return next;
+    }
+
+    /**
+     * Drops expired sessions, then the oldest ones until there is room for
+     * another.
+     */
+    private static void evict() {
+
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, U2FSession>> it = REGISTRY.entrySet().iterator();
+
+        while (it.hasNext()) {
+            if (it.next().getValue().isExpired(now))
+                it.remove();
+        }
+
+        while (REGISTRY.size() >= MAX_SESSIONS) {
+
+            Map.Entry<String, U2FSession> oldest = null;
+
+            for (Map.Entry<String, U2FSession> entry : REGISTRY.entrySet()) {
+                if (oldest == null || entry.getValue().started < oldest.getValue().started)
+                    oldest = entry;
+            }
+
+            if (oldest == null)
+                break;
+
+            REGISTRY.remove(oldest.getKey(), oldest.getValue());
+
+        }
+
+    }
+
+}
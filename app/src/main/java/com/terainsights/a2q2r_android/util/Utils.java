@@ -6,16 +6,14 @@ import android.security.KeyPairGeneratorSpec;
 import android.security.keystore.KeyGenParameterSpec;
 import android.security.keystore.KeyProperties;
 import android.security.keystore.UserNotAuthenticatedException;
-import android.util.Base64;
-import android.util.Patterns;
+import android.util.Log;
 
 import java.io.IOException;
 import java.math.BigInteger;
-import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyPairGenerator;
-import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
@@ -23,10 +21,6 @@ import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.Signature;
-import java.security.SignatureException;
-import java.security.UnrecoverableEntryException;
-import java.security.UnrecoverableKeyException;
-import java.security.cert.CertificateException;
 import java.security.spec.ECGenParameterSpec;
 import java.util.Date;
 
@@ -34,61 +28,12 @@ import javax.security.auth.x500.X500Principal;
 
 /**
  * Contains utility methods for key generation and signing of data.
- * QR documentation can be found <a href="https://github.com/alinVD/2Q2R-lib/wiki/QR-code-protocol"
- * >here</a>.
  *
  * @author Sam Claus, Tera Insights, LLC
  * @version 8/31/16
  */
 public class Utils {
 
-    /**
-     * A convenience method to check whether a QR code complies with 2Q2R standards.
-     * @param decodedQR The String parsed from a QR.
-     * @return 'R' - registration QR
-     *         'A' - authentication QR
-     *          0  - invalid QR
-     */
-    public static char identifyQRType(String decodedQR) {
-
-        String[] split = decodedQR.split(" ");
-
-        if (split[0].equals("R")) {
-
-            if (split.length != 4)
-                return 0;
-
-            if (Base64.decode(split[1], Base64.URL_SAFE).length != 32)
-                return 0;
-
-            if (!Patterns.WEB_URL.matcher(split[2]).matches())
-                return 0;
-
-            return 'R';
-
-        } else if (split[0].equals("A")) {
-
-            if (split.length != 5)
-                return 0;
-
-            if (Base64.decode(split[1], Base64.URL_SAFE).length != 32)
-                return 0;
-
-            if (Base64.decode(split[2], Base64.URL_SAFE).length != 32)
-                return 0;
-
-            try {
-                Integer.parseInt(split[4]);
-            } catch (Exception e) {
-                return 0;
-            }
-
-            return 'A';
-
-        } else { return 0; }
-
-    }
-
     /**
      * Generates cryptographically secure random bytes for use as a U2F key handle.
      * @return A web-safe-Base64 representation of a 16 random bytes for use as a key handle.
@@ -98,7 +43,7 @@ public class Utils {
         byte[] handle = new byte[16];
         new SecureRandom().nextBytes(handle);
 
-        return Base64.encodeToString(handle, Base64.URL_SAFE | Base64.NO_PADDING | Base64.NO_WRAP);
+        return WebSafeBase64.encode(handle);
 
     }
 
@@ -118,17 +63,14 @@ public class Utils {
 
         try {
 
-            KeyStore ks = KeyStore.getInstance("AndroidKeyStore");
-            ks.load(null);
-
-            if (ks.containsAlias(base64KeyID))
-                return ks.getCertificate(base64KeyID).getPublicKey();
+            if (Keys.contains(base64KeyID))
+                return Keys.certificate(base64KeyID).getPublicKey();
 
             if (Build.VERSION.SDK_INT >= 23) {
 
                 KeyPairGenerator gen = KeyPairGenerator.getInstance(
                         KeyProperties.KEY_ALGORITHM_EC,
-                        "AndroidKeyStore"
+                        Keys.PROVIDER
                 );
 
                 gen.initialize(
@@ -138,7 +80,8 @@ public class Utils {
                                 .setAlgorithmParameterSpec(new ECGenParameterSpec("secp256r1"))
                                 .setDigests(KeyProperties.DIGEST_SHA256)
                                 .setUserAuthenticationRequired(true)
-                                .setUserAuthenticationValidityDurationSeconds(5 * 60)
+                                .setUserAuthenticationValidityDurationSeconds(
+                                        AuthWindow.VALIDITY_SECONDS)
                                 .build()
                 );
 
@@ -148,7 +91,7 @@ public class Utils {
 
                 KeyPairGenerator gen = KeyPairGenerator.getInstance(
                         KeyProperties.KEY_ALGORITHM_RSA,
-                        "AndroidKeyStore"
+                        Keys.PROVIDER
                 );
 
                 gen.initialize(
@@ -177,9 +120,7 @@ public class Utils {
             e.printStackTrace();
         } catch (IllegalStateException e) {
             e.printStackTrace();
-        } catch (KeyStoreException e) {
-            e.printStackTrace();
-        } catch (CertificateException e) {
+        } catch (GeneralSecurityException e) {
             e.printStackTrace();
         } catch (IOException e) {
             e.printStackTrace();
@@ -191,6 +132,8 @@ public class Utils {
 
     /**
      * Signs an array of bytes using a private key looked up in the KeyStore.
+     * The key handle comes from the {@link Keys} cache, so only the first
+     * signature with a key pays for the lookup.
      * @param data The bytes to be signed.
      * @param index Should be an `appID` [Base64 of 32 bytes], used to look
      *              up the private key for a specific server in the KeyStore.
@@ -201,32 +144,34 @@ public class Utils {
 
         try {
 
-            KeyStore ks = KeyStore.getInstance("AndroidKeyStore");
-            ks.load(null);
-            PrivateKey privKey = (PrivateKey) ks.getKey(index, null);
+            PrivateKey privKey = Keys.privateKey(index);
+
+            // Reported as a key error rather than falling through to the
+            // catch-all below, which would blame the authentication window.
+            if (privKey == null)
+                throw new KeyStoreException("No private key for " + index);
 
+            long start = System.nanoTime();
 
-            Signature sig = Signature.getInstance("SHA256withECDSA");
+            Signature sig = Crypto.signature(privKey);
             sig.initSign(privKey);
             sig.update(data);
 
-            return sig.sign();
+            byte[] signature = sig.sign();
+
+            Log.i("MONITOR", "Signing took " + Keys.millisSince(start) + " ms");
+
+            return signature;
 
-        } catch (KeyStoreException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        } catch (CertificateException e) {
-            e.printStackTrace();
-        } catch (UnrecoverableKeyException e) {
-            e.printStackTrace();
         } catch (InvalidKeyException e) {
+            if (Build.VERSION.SDK_INT >= 23 && e instanceof UserNotAuthenticatedException)
+                throw new AuthExpiredException();
+            // The cached handle may belong to a key which has since been invalidated.
             e.printStackTrace();
-        } catch (SignatureException e) {
+            Keys.invalidate(index);
+        } catch (GeneralSecurityException e) {
             e.printStackTrace();
-        } catch (UnrecoverableEntryException e) {
+        } catch (IOException e) {
             e.printStackTrace();
         } catch (Exception e) {
             throw new AuthExpiredException();
@@ -236,18 +181,6 @@ public class Utils {
 
     }
 
-    /**
-     * Converts an integer to an array of 4 bytes, for convenience when dealing
-     * with U2F counters.
-     * @param counter The integer counter.
-     * @return A big-endian 4-byte array representation of the counter.
-     */
-    public static byte[] toByteArray(int counter) {
-
-        return ByteBuffer.allocate(4).putInt(counter).array();
-
-    }
-
     /**
      * Used in place of {@link UserNotAuthenticatedException} for backwards compatibility.
      */
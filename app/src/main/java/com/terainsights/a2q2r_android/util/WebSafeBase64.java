@@ -0,0 +1,219 @@
+package com.terainsights.a2q2r_android.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A web-safe Base64 codec (RFC 4648 section 5) as used throughout U2F. Encodes
+ * without padding and decodes with or without it. Besides the usual String
+ * conversions it can validate an encoding's length without decoding it, decode
+ * into an existing array, and encode straight into a stream, so hot paths don't
+ * need intermediate Strings. Uses no Android APIs.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public class WebSafeBase64 {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final byte[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".getBytes(ASCII);
+
+    /**
+     * Maps ASCII characters to their 6-bit values, or -1 if not in the alphabet.
+     */
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        Arrays.fill(VALUES, (byte) -1);
+        for (int i = 0; i < ALPHABET.length; i++)
+            VALUES[ALPHABET[i]] = (byte) i;
+    }
+
+    /**
+     * Bytes of input encoded per chunk by {@link #encode(byte[], OutputStream)}.
+     * A multiple of 3, so that only the last chunk can be partial.
+     */
+    private static final int CHUNK = 3 * 256;
+
+    private static final ThreadLocal<byte[]> CHUNK_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[CHUNK / 3 * 4];
+        }
+    };
+
+    /**
+     * @param length A number of raw bytes.
+     * @return The length of their unpadded encoding.
+     */
+    public static int encodedLength(int length) {
+        int remainder = length % 3;
+        return length / 3 * 4 + (remainder == 0 ? 0 : remainder + 1);
+    }
+
+    /**
+     * Validates an encoding and computes how many bytes it decodes to, without
+     * decoding it.
+     * @param encoded Web-safe Base64, optionally padded.
+     * @return The decoded length, or -1 if {@code encoded} isn't valid.
+     */
+    public static int decodedLength(CharSequence encoded) {
+
+        int length = encoded.length();
+        int end = length;
+
+        while (end > 0 && encoded.charAt(end - 1) == '=')
+            end--;
+
+        if (end != length && (length - end > 2 || length % 4 != 0))
+            return -1;
+
+        if (end % 4 == 1)
+            return -1;
+
+        for (int i = 0; i < end; i++) {
+            char c = encoded.charAt(i);
+            if (c >= 128 || VALUES[c] < 0)
+                return -1;
+        }
+
+        return end * 3 / 4;
+
+    }
+
+    /**
+     * Decodes into an existing array.
+     * @param encoded Web-safe Base64, optionally padded.
+     * @param dst     The array to decode into.
+     * @param offset  Where in {@code dst} to start writing.
+     * @return The number of bytes written.
+     * @throws IllegalArgumentException If {@code encoded} isn't valid.
+     */
+    public static int decode(CharSequence encoded, byte[] dst, int offset) {
+
+        int decoded = decodedLength(encoded);
+
+        if (decoded < 0)
+            throw new IllegalArgumentException("Invalid web-safe Base64.");
+
+        int end = encoded.length();
+
+        while (end > 0 && encoded.charAt(end - 1) == '=')
+            end--;
+
+        int out = offset;
+        int bits = 0;
+        int buffer = 0;
+
+        for (int i = 0; i < end; i++) {
+
+            buffer = (buffer << 6) | VALUES[encoded.charAt(i)];
+            bits += 6;
+
+            if (bits >= 8) {
+                bits -= 8;
+                dst[out++] = (byte) (buffer >> bits);
+                buffer &= (1 << bits) - 1;
+            }
+
+        }
+
+        return decoded;
+
+    }
+
+    /**
+     * @param encoded Web-safe Base64, optionally padded.
+     * @return The decoded bytes.
+     * @throws IllegalArgumentException If {@code encoded} isn't valid.
+     */
+    public static byte[] decode(CharSequence encoded) {
+
+        int length = decodedLength(encoded);
+
+        if (length < 0)
+            throw new IllegalArgumentException("Invalid web-safe Base64.");
+
+        byte[] result = new byte[length];
+        decode(encoded, result, 0);
+
+        return result;
+
+    }
+
+    /**
+     * Encodes into an existing array of ASCII bytes.
+     * @param src    The bytes to encode.
+     * @param offset Where in {@code src} to start.
+     * @param length How many bytes of {@code src} to encode.
+     * @param dst    The array to write the encoding to; must have room for
+     *               {@link #encodedLength(int)} bytes.
+     * @param dstOffset Where in {@code dst} to start writing.
+     * @return The number of bytes written.
+     */
+    public static int encode(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+
+        int in = offset;
+        int out = dstOffset;
+        int end = offset + length - length % 3;
+
+        while (in < end) {
+            int group = (src[in++] & 0xFF) << 16 | (src[in++] & 0xFF) << 8 | (src[in++] & 0xFF);
+            dst[out++] = ALPHABET[group >>> 18];
+            dst[out++] = ALPHABET[(group >>> 12) & 0x3F];
+            dst[out++] = ALPHABET[(group >>> 6) & 0x3F];
+            dst[out++] = ALPHABET[group & 0x3F];
+        }
+
+        int remainder = length % 3;
+
+        if (remainder == 1) {
+            int group = (src[in] & 0xFF) << 16;
+            dst[out++] = ALPHABET[group >>> 18];
+            dst[out++] = ALPHABET[(group >>> 12) & 0x3F];
+        } else if (remainder == 2) {
+            int group = (src[in] & 0xFF) << 16 | (src[in + 1] & 0xFF) << 8;
+            dst[out++] = ALPHABET[group >>> 18];
+            dst[out++] = ALPHABET[(group >>> 12) & 0x3F];
+            dst[out++] = ALPHABET[(group >>> 6) & 0x3F];
+        }
+
+        return out - dstOffset;
+
+    }
+
+    /**
+     * @param src The bytes to encode.
+     * @return Their unpadded web-safe Base64 encoding.
+     */
+    public static String encode(byte[] src) {
+
+        byte[] dst = new byte[encodedLength(src.length)];
+        encode(src, 0, src.length, dst, 0);
+
+        return new String(dst, ASCII);
+
+    }
+
+    /**
+     * Encodes straight into a stream as ASCII, a chunk at a time, through a
+     * reused per-thread buffer.
+     * @param src The bytes to encode.
+     * @param out The stream to write the encoding to.
+     */
+    public static void encode(byte[] src, OutputStream out) throws IOException {
+
+        byte[] chunk = CHUNK_BUFFER.get();
+
+        for (int offset = 0; offset < src.length; offset += CHUNK) {
+            int length = Math.min(CHUNK, src.length - offset);
+            out.write(chunk, 0, encode(src, offset, length, chunk, 0));
+        }
+
+    }
+
+}
@@ -0,0 +1,226 @@
+package com.terainsights.a2q2r_android.util;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The app's threads. Work is split by the resource it waits on, so that e.g. a
+ * burst of keystore operations can't hold up database writes:
+ * <ul>
+ *     <li>{@link #CRYPTO}: key generation, hashing and signing;</li>
+ *     <li>{@link #DISK}: SQLite reads and writes;</li>
+ *     <li>{@link #NETWORK}: HTTP calls, used as OkHttp's dispatcher;</li>
+ *     <li>{@link #SCAN}: QR decoding while the camera is open;</li>
+ *     <li>{@link #MAIN}: hand-off back to the UI thread.</li>
+ * </ul>
+ * Each pool is bounded. When its queue is full a background submitter runs
+ * the task itself, which slows producers down instead of queueing without
+ * limit. The UI thread never does, since the task could block it for as long
+ * as a scan or a keystore operation takes; its tasks are handed back to the
+ * pool a little later instead.
+ * Pools record how long tasks wait before they start and log the slow ones
+ * with the queue depth at the time.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public class Workers {
+
+    /**
+     * Waits at least this long are logged.
+     */
+    private static final long SLOW_WAIT_MILLIS = 100;
+
+    /**
+     * How long a task submitted from the UI thread to a full pool waits before
+     * it is submitted again.
+     */
+    private static final long RETRY_MILLIS = 50;
+
+    public static final Pool CRYPTO = new Pool("crypto", 2, 32,
+            Process.THREAD_PRIORITY_DEFAULT);
+
+    /**
+     * A single thread, since SQLite only allows one writer at a time anyway.
+     */
+    public static final Pool DISK = new Pool("disk", 1, 64,
+            Process.THREAD_PRIORITY_BACKGROUND);
+
+    public static final Pool NETWORK = new Pool("network", 4, 60,
+            Process.THREAD_PRIORITY_BACKGROUND);
+
+    /**
+     * The scanner blocks on camera frames for as long as the camera is open, so
+     * it gets a thread of its own rather than tying one up in {@link #CRYPTO}.
+     * A few scanners can queue behind it while the camera is reopened quickly.
+     */
+    public static final Pool SCAN = new Pool("scan", 1, 4,
+            Process.THREAD_PRIORITY_DEFAULT);
+
+    private static final Handler HANDLER = new Handler(Looper.getMainLooper());
+
+    /**
+     * Runs tasks on the UI thread.
+     */
+    public static final Executor MAIN = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            HANDLER.post(task);
+        }
+    };
+
+    /**
+     * Runs a task on the UI thread, immediately if already on it.
+     */
+    public static void onMain(Runnable task) {
+        if (Looper.myLooper() == Looper.getMainLooper())
+            task.run();
+        else
+            HANDLER.post(task);
+    }
+
+    /**
+     * A fixed-size, bounded thread pool which measures queueing delay.
+     */
+    public static class Pool extends ThreadPoolExecutor {
+
+        private final String name;
+        private final int capacity;
+
+        private final AtomicLong started = new AtomicLong();
+        private final AtomicLong totalWait = new AtomicLong();
+        private final AtomicLong maxWait = new AtomicLong();
+        private final AtomicLong saturated = new AtomicLong();
+
+        Pool(final String name, int threads, int queueCapacity, final int priority) {
+
+            super(threads, threads, 30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueCapacity),
+                    new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(priority);
+                                    r.run();
+                                }
+                            }, "2Q2R " + name + " #" + count.incrementAndGet());
+                        }
+                    },
+                    new RejectedExecutionHandler() {
+                        @Override
+                        public void rejectedExecution(final Runnable r, ThreadPoolExecutor pool) {
+
+                            final Pool self = (Pool) pool;
+                            self.saturated.incrementAndGet();
+
+                            if (pool.isShutdown())
+                                return;
+
+                            if (Looper.myLooper() == Looper.getMainLooper()) {
+
+                                Log.i("MONITOR", self.name + " pool is saturated; retrying " +
+                                        "a task from the main thread in " + RETRY_MILLIS + " ms");
+
+                                HANDLER.postDelayed(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        self.resubmit(r);
+                                    }
+                                }, RETRY_MILLIS);
+
+                            } else {
+
+                                Log.i("MONITOR", self.name + " pool is saturated; running a " +
+                                        "task on " + Thread.currentThread().getName());
+                                r.run();
+
+                            }
+
+                        }
+                    });
+
+            this.name = name;
+            this.capacity = threads + queueCapacity;
+
+            allowCoreThreadTimeOut(true);
+
+        }
+
+        @Override
+        public void execute(final Runnable task) {
+
+            final long queued = System.nanoTime();
+
+            super.execute(new Runnable() {
+                @Override
+                public void run() {
+                    record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queued));
+                    task.run();
+                }
+            });
+
+        }
+
+        /**
+         * Submits a task which was rejected earlier, without timing it again.
+         */
+        private void resubmit(Runnable task) {
+            super.execute(task);
+        }
+
+        /**
+         * @return The number of tasks the pool can hold, running or queued,
+         *         before submitters have to run tasks themselves.
+         */
+        public int capacity() {
+            return capacity;
+        }
+
+        /**
+         * @return A summary of the pool's metrics, for logging.
+         */
+        public String stats() {
+
+            long count = started.get();
+
+            return name + " pool: " + count + " tasks, " +
+                    (count == 0 ? 0 : totalWait.get() / count) + " ms mean wait, " +
+                    maxWait.get() + " ms max wait, " +
+                    getQueue().size() + " queued, " +
+                    saturated.get() + " saturations";
+
+        }
+
+        private void record(long wait) {
+
+            started.incrementAndGet();
+            totalWait.addAndGet(wait);
+
+            long max;
+            do {
+                max = maxWait.get();
+            } while (wait > max && !maxWait.compareAndSet(max, wait));
+
+            if (wait >= SLOW_WAIT_MILLIS)
+                Log.i("MONITOR", name + " task waited " + wait + " ms with " +
+                        getQueue().size() + " still queued; " + stats());
+
+        }
+
+    }
+
+}
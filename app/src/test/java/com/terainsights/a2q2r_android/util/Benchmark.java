@@ -0,0 +1,101 @@
+package com.terainsights.a2q2r_android.util;
+
+import org.junit.Before;
+
+import java.util.Locale;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * The base of the micro-benchmarks, which are kept out of the unit tests and
+ * skipped unless asked for with {@code ./gradlew test -Pbenchmark}. Each one
+ * runs an operation enough times to warm up the JIT, then times a batch of it
+ * and, where the JVM can count them, the bytes it allocated. Results are
+ * printed rather than asserted on, since they depend on the machine running
+ * the benchmarks.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public abstract class Benchmark {
+
+    /**
+     * The most runs spent warming up, fewer if the measured batch is smaller.
+     */
+    private static final int WARMUP = 20000;
+
+    /**
+     * An operation being measured.
+     */
+    interface Op {
+
+        /**
+         * Should return something derived from its work, so the JIT can't
+         * optimize it away.
+         * @param i The number of the run.
+         */
+        Object run(int i) throws Exception;
+
+    }
+
+    /**
+     * Checked per benchmark rather than per class, since Robolectric sets up
+     * its classes again for every test.
+     */
+    @Before
+    public void onlyWhenAsked() {
+        assumeTrue("Run with -Pbenchmark to measure.", Boolean.getBoolean("benchmark"));
+    }
+
+    /**
+     * Times an operation and prints its throughput and allocation rate.
+     * @param name       What to call it in the output.
+     * @param iterations How many times to run it once warmed up.
+     * @param op         The operation.
+     */
+    static void measure(String name, int iterations, Op op) throws Exception {
+
+        int sink = 0;
+
+        for (int i = 0; i < Math.min(WARMUP, iterations); i++)
+            sink += op.run(i).hashCode();
+
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+
+        for (int i = 0; i < iterations; i++)
+            sink += op.run(i).hashCode();
+
+        long elapsed = System.nanoTime() - start;
+        bytes = allocatedBytes() - bytes;
+
+        System.out.println(String.format(Locale.US, "%-48s %10.0f ops/s %8s B/op  (%d)", name,
+                iterations * 1e9 / elapsed,
+                bytes < 0 ? "?" : String.valueOf(bytes / iterations), sink & 1));
+
+    }
+
+    /**
+     * @return The bytes allocated by the calling thread so far, or a negative
+     *         number if the JVM doesn't track them. Looked up reflectively, since
+     *         the management APIs aren't part of the Android boot classpath the
+     *         tests are compiled against.
+     */
+    private static long allocatedBytes() {
+
+        try {
+
+            Object threads = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+
+            return (Long) Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class)
+                    .invoke(threads, Thread.currentThread().getId());
+
+        } catch (Exception e) {
+            return -1;
+        }
+
+    }
+
+}
@@ -0,0 +1,128 @@
+package com.terainsights.a2q2r_android.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+
+/**
+ * Compares the engines and application parameters {@link Crypto} keeps per
+ * thread with looking them up from the security providers on every use, as
+ * the app used to. Signs with a software P-256 key, so only the lookups
+ * differ from signing with the AndroidKeyStore.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public class CryptoBenchmark extends Benchmark {
+
+    private static final String APP_URL = "https://2q2r.example.com/";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * About the size of the data signed for an authentication.
+     */
+    private static final byte[] SIGNED_DATA = new byte[69];
+
+    private PrivateKey key;
+
+    @Before
+    public void setUp() throws Exception {
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+
+        key = generator.generateKeyPair().getPrivate();
+
+    }
+
+    @Test
+    public void digest() throws Exception {
+
+        measure("sha256, reused digest", 1000000, new Op() {
+            @Override
+            public Object run(int i) {
+                return Crypto.sha256(SIGNED_DATA);
+            }
+        });
+
+        measure("sha256, looked up", 1000000, new Op() {
+            @Override
+            public Object run(int i) throws Exception {
+                return MessageDigest.getInstance(Crypto.DIGEST_ALGORITHM).digest(SIGNED_DATA);
+            }
+        });
+
+    }
+
+    @Test
+    public void appParam() throws Exception {
+
+        measure("appParam, cached", 1000000, new Op() {
+            @Override
+            public Object run(int i) {
+                return Crypto.appParam(APP_URL);
+            }
+        });
+
+        measure("appParam, hashed", 1000000, new Op() {
+            @Override
+            public Object run(int i) throws Exception {
+                return MessageDigest.getInstance(Crypto.DIGEST_ALGORITHM)
+                        .digest(APP_URL.getBytes(UTF_8));
+            }
+        });
+
+    }
+
+    @Test
+    public void signatureLookup() throws Exception {
+
+        measure("signature engine, reused", 1000000, new Op() {
+            @Override
+            public Object run(int i) throws Exception {
+                return Crypto.signature(key);
+            }
+        });
+
+        measure("signature engine, looked up", 1000000, new Op() {
+            @Override
+            public Object run(int i) throws Exception {
+                return Signature.getInstance(Crypto.SIGNATURE_ALGORITHM);
+            }
+        });
+
+    }
+
+    @Test
+    public void sign() throws Exception {
+
+        measure("sign, reused engine", 5000, new Op() {
+            @Override
+            public Object run(int i) throws Exception {
+                Signature signature = Crypto.signature(key);
+                signature.initSign(key);
+                signature.update(SIGNED_DATA);
+                return Arrays.hashCode(signature.sign());
+            }
+        });
+
+        measure("sign, looked up engine", 5000, new Op() {
+            @Override
+            public Object run(int i) throws Exception {
+                Signature signature = Signature.getInstance(Crypto.SIGNATURE_ALGORITHM);
+                signature.initSign(key);
+                signature.update(SIGNED_DATA);
+                return Arrays.hashCode(signature.sign());
+            }
+        });
+
+    }
+
+}
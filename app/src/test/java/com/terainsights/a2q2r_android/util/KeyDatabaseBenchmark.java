@@ -0,0 +1,243 @@
+package com.terainsights.a2q2r_android.util;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.terainsights.a2q2r_android.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Times the lookups that run for every request, and the key list's pages and
+ * searches, against a database of {@link #KEYS} keys spread over
+ * {@link #SERVERS} servers. Runs under Robolectric for SQLite, whose native
+ * library there is slower to call than Android's, so the numbers are best
+ * compared with each other.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class KeyDatabaseBenchmark extends Benchmark {
+
+    private static final int KEYS = 10000;
+    private static final int SERVERS = 100;
+
+    /**
+     * The number of keys on a page of the key list.
+     */
+    private static final int PAGE = 50;
+
+    private File file;
+    private KeyDatabase keys;
+    private int inserted = 0;
+
+    @Before
+    public void setUp() throws Exception {
+
+        file = File.createTempFile("registrations", ".database");
+        file.delete();
+
+        keys = new KeyDatabase(file);
+        keys.open();
+
+        SQLiteDatabase database = SQLiteDatabase.openDatabase(file.getPath(), null,
+                SQLiteDatabase.OPEN_READWRITE);
+        database.beginTransaction();
+
+        try {
+
+            SQLiteStatement server = database.compileStatement("INSERT INTO servers (appID, " +
+                    "appURL, appName, appParam) VALUES (?, ?, ?, ?)");
+
+            for (int s = 0; s < SERVERS; s++) {
+                server.bindString(1, appID(s));
+                server.bindString(2, "https://server" + s + ".example.com/");
+                server.bindString(3, "Server " + s);
+                server.bindBlob(4, Crypto.appParam("https://server" + s + ".example.com/"));
+                server.executeInsert();
+            }
+
+            SQLiteStatement key = database.compileStatement("INSERT INTO keys (keyID, appID, " +
+                    "counter, userID, lastUsed, useCount) VALUES (?, ?, ?, ?, ?, ?)");
+
+            for (int k = 0; k < KEYS; k++) {
+                key.bindString(1, keyID(k));
+                key.bindString(2, appID(k % SERVERS));
+                key.bindLong(3, k % 1000);
+                key.bindString(4, userID(k));
+                key.bindLong(5, 1470000000000L + k * 60000L);
+                key.bindLong(6, k % 50);
+                key.executeInsert();
+            }
+
+            database.setTransactionSuccessful();
+
+        } finally {
+            database.endTransaction();
+            database.close();
+        }
+
+        assertEquals(KEYS, keys.getKeyCount());
+
+    }
+
+    /**
+     * Also runs when the benchmark was skipped before {@link #setUp()}.
+     */
+    @After
+    public void tearDown() {
+        if (file != null)
+            SQLiteDatabase.deleteDatabase(file);
+    }
+
+    @Test
+    public void probes() throws Exception {
+
+        measure("getCounter", 5000, new Op() {
+            @Override
+            public Object run(int i) {
+                return keys.getCounter(keyID(i * 7 % KEYS));
+            }
+        });
+
+        measure("hasKey", 5000, new Op() {
+            @Override
+            public Object run(int i) {
+                return keys.hasKey(keyID(i * 7 % KEYS));
+            }
+        });
+
+        measure("hasServer", 5000, new Op() {
+            @Override
+            public Object run(int i) {
+                return keys.hasServer(appID(i % SERVERS));
+            }
+        });
+
+        measure("checkUserAlreadyRegistered", 5000, new Op() {
+            @Override
+            public Object run(int i) {
+                int k = i * 7 % KEYS;
+                return keys.checkUserAlreadyRegistered(userID(k), appID(k % SERVERS));
+            }
+        });
+
+        measure("getServerInfo", 5000, new Op() {
+            @Override
+            public Object run(int i) {
+                return keys.getServerInfo(appID(i % SERVERS)).appURL;
+            }
+        });
+
+    }
+
+    @Test
+    public void pages() throws Exception {
+
+        final KeyDatabase.KeyRow deep = keys.getKeyPage(KEYS - PAGE - 1, 1).get(0);
+
+        measure("getKeyCount", 1000, new Op() {
+            @Override
+            public Object run(int i) {
+                return keys.getKeyCount();
+            }
+        });
+
+        measure("getKeyPage, first page", 1000, new Op() {
+            @Override
+            public Object run(int i) {
+                return checked(keys.getKeyPage(null, PAGE));
+            }
+        });
+
+        measure("getKeyPage, after the last page's anchor", 1000, new Op() {
+            @Override
+            public Object run(int i) {
+                return checked(keys.getKeyPage(deep, PAGE));
+            }
+        });
+
+        measure("getKeyPage, by offset on the last page", 200, new Op() {
+            @Override
+            public Object run(int i) {
+                return checked(keys.getKeyPage(KEYS - PAGE, PAGE));
+            }
+        });
+
+    }
+
+    @Test
+    public void searches() throws Exception {
+
+        final KeyDatabase.KeyRow last = keys.searchKeys("server", null, PAGE).get(PAGE - 1);
+
+        measure("searchKeys, first page", 1000, new Op() {
+            @Override
+            public Object run(int i) {
+                return checked(keys.searchKeys("user" + (1 + i % 9), null, PAGE));
+            }
+        });
+
+        measure("searchKeys, after an anchor", 1000, new Op() {
+            @Override
+            public Object run(int i) {
+                return checked(keys.searchKeys("server", last, PAGE));
+            }
+        });
+
+        measure("countSearchResults", 1000, new Op() {
+            @Override
+            public Object run(int i) {
+                return keys.countSearchResults("server" + (1 + i % 9));
+            }
+        });
+
+    }
+
+    @Test
+    public void insertKey() throws Exception {
+
+        measure("insertNewKey and awaitWrites", 1000, new Op() {
+            @Override
+            public Object run(int i) {
+                keys.insertNewKey("new" + inserted, appID(inserted % SERVERS), "new" + inserted);
+                keys.awaitWrites();
+                return inserted++;
+            }
+        });
+
+    }
+
+    /**
+     * Makes sure a page was full, so the benchmark measures what it claims to.
+     */
+    private static List<KeyDatabase.KeyRow> checked(List<KeyDatabase.KeyRow> page) {
+        assertEquals(PAGE, page.size());
+        return page;
+    }
+
+    private static String keyID(int k) {
+        return "key" + k;
+    }
+
+    private static String appID(int s) {
+        return "app" + s;
+    }
+
+    private static String userID(int k) {
+        return "user" + k + "@example.com";
+    }
+
+}
@@ -0,0 +1,94 @@
+package com.terainsights.a2q2r_android.util;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import com.terainsights.a2q2r_android.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Times opening large databases from before the schema was versioned, which
+ * brings them up to version 1 and then rebuilds the keys table for version 2.
+ * A migration only ever runs once, so each size is timed once rather than
+ * with {@link #measure}. See {@link KeyDatabaseTest#createLegacyDatabase}.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class KeyDatabaseMigrationBenchmark extends Benchmark {
+
+    /**
+     * Keys in the untimed migration run first, which pays for loading SQLite
+     * and compiling the migration's code.
+     */
+    private static final int WARMUP_KEYS = 1000;
+
+    @Test
+    public void migrate10000Keys() throws Exception {
+        migrate(WARMUP_KEYS, 10);
+        report(10000, 100, migrate(10000, 100));
+    }
+
+    @Test
+    public void migrate50000Keys() throws Exception {
+        migrate(WARMUP_KEYS, 10);
+        report(50000, 500, migrate(50000, 500));
+    }
+
+    private static void report(int keys, int servers, long elapsed) {
+        System.out.println(String.format(Locale.US, "%-48s %10.0f ms",
+                "migrate " + keys + " keys, " + servers + " servers", elapsed / 1e6));
+    }
+
+    /**
+     * Migrates a legacy database and checks the result.
+     * @return How long opening the database took, in nanoseconds.
+     */
+    private static long migrate(int keys, int servers) throws Exception {
+
+        File file = File.createTempFile("legacy", ".database");
+        file.delete();
+
+        KeyDatabaseTest.createLegacyDatabase(file, keys, servers);
+
+        try {
+
+            KeyDatabase database = new KeyDatabase(file);
+
+            long start = System.nanoTime();
+            database.open();
+            long elapsed = System.nanoTime() - start;
+
+            assertEquals(keys, database.getKeyCount());
+
+            // The most recently used key comes first.
+            List<KeyDatabase.KeyRow> first = database.getKeyPage(null, 1);
+            SimpleDateFormat format = new SimpleDateFormat(KeyDatabaseTest.LEGACY_LAST_USED);
+
+            assertEquals("key" + (keys - 1), first.get(0).keyID);
+            assertEquals(format.parse(KeyDatabaseTest.legacyLastUsed(keys - 1)).getTime(),
+                    first.get(0).lastUsed);
+            assertEquals(0, first.get(0).useCount);
+            assertEquals(keys / 2, database.countSearchResults("server"));
+
+            return elapsed;
+
+        } finally {
+            SQLiteDatabase.deleteDatabase(file);
+        }
+
+    }
+
+}
@@ -0,0 +1,256 @@
+package com.terainsights.a2q2r_android.util;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.terainsights.a2q2r_android.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the query plans of the lookups that run for every request and every
+ * page of the key list, against the schema {@link KeyDatabase} creates: none
+ * of them may scan a whole table or sort in a temporary b-tree. Also checks
+ * that a database from before the schema was versioned is migrated intact.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class KeyDatabaseTest {
+
+    /**
+     * How versions before 2 stored when a key was last used, in local time.
+     */
+    static final String LEGACY_LAST_USED = "yyyy/MM/dd HH:mm";
+
+    /**
+     * A table scan which uses no index; SQLite before 3.24 writes "SCAN TABLE".
+     */
+    private static final Pattern FULL_SCAN =
+            Pattern.compile("^SCAN (TABLE )?(keys|servers)\\b(?!.*\\bINDEX\\b).*");
+
+    private File file;
+    private SQLiteDatabase database;
+
+    @Before
+    public void setUp() throws Exception {
+
+        file = File.createTempFile("registrations", ".database");
+        file.delete();
+
+        new KeyDatabase(file).open();
+        database = SQLiteDatabase.openDatabase(file.getPath(), null,
+                SQLiteDatabase.OPEN_READWRITE);
+
+    }
+
+    @After
+    public void tearDown() {
+        database.close();
+        SQLiteDatabase.deleteDatabase(file);
+    }
+
+    @Test
+    public void probesSearchTheirIndexes() {
+
+        assertUses(plan(KeyDatabase.COUNTER_QUERY, "key"), "SEARCH", "keys");
+        assertUses(plan(KeyDatabase.KEY_EXISTS_QUERY, "key"), "SEARCH", "keys");
+        assertUses(plan(KeyDatabase.SERVER_EXISTS_QUERY, "app"), "SEARCH", "servers");
+        assertUses(plan(KeyDatabase.SERVER_INFO_QUERY, "app"), "SEARCH", "servers");
+        assertUses(plan(KeyDatabase.USER_KEY_EXISTS_QUERY, "app", "user"), "SEARCH",
+                "keys_app_user");
+
+    }
+
+    @Test
+    public void pagesWalkTheRecencyIndex() {
+
+        List<String> first = plan(KeyDatabase.KEY_ROW_QUERY + KeyDatabase.KEY_ROW_ORDER + 50);
+        assertUses(first, "keys_recent");
+
+        List<String> next = plan(KeyDatabase.KEY_ROW_QUERY + KeyDatabase.KEY_ROW_AFTER +
+                KeyDatabase.KEY_ROW_ORDER + 50, "0", "0", "key");
+        assertUses(next, "SEARCH", "keys_recent");
+
+        List<String> key = plan(KeyDatabase.KEY_ROW_QUERY + "AND keyID = ?", "key");
+        assertUses(key, "SEARCH", "keys");
+
+        plan(KeyDatabase.KEY_COUNT_QUERY);
+
+    }
+
+    @Test
+    public void searchesUseTheFullTextIndex() {
+
+        assertUses(plan(KeyDatabase.SEARCH_QUERY + KeyDatabase.SEARCH_ORDER + 50, "sam*"),
+                "keys_search");
+        assertUses(plan(KeyDatabase.SEARCH_QUERY + KeyDatabase.SEARCH_AFTER +
+                KeyDatabase.SEARCH_ORDER + 50, "sam*", "100"), "keys_search");
+        assertUses(plan(KeyDatabase.SEARCH_COUNT_QUERY, "sam*"), "keys_search");
+
+    }
+
+    @Test
+    public void migratesPreVersioningDatabases() throws Exception {
+
+        File legacy = File.createTempFile("legacy", ".database");
+        legacy.delete();
+
+        createLegacyDatabase(legacy, 3, 2);
+
+        try {
+
+            KeyDatabase keys = new KeyDatabase(legacy);
+            keys.open();
+
+            assertEquals(3, keys.getKeyCount());
+            assertEquals(2, keys.searchKeys("server", null, 10).size());
+
+            List<KeyDatabase.KeyRow> rows = keys.getKeyPage(null, 10);
+            SimpleDateFormat format = new SimpleDateFormat(LEGACY_LAST_USED);
+
+            for (int k = 0; k < 3; k++) {
+
+                KeyDatabase.KeyRow row = rows.get(2 - k);
+
+                assertEquals("key" + k, row.keyID);
+                assertEquals(format.parse(legacyLastUsed(k)).getTime(), row.lastUsed);
+                assertEquals(k, row.counter);
+                assertEquals(0, row.useCount);
+
+            }
+
+            SQLiteDatabase migrated = SQLiteDatabase.openDatabase(legacy.getPath(), null,
+                    SQLiteDatabase.OPEN_READONLY);
+            Cursor cursor = migrated.rawQuery("SELECT appURL, appParam FROM servers", null);
+
+            while (cursor.moveToNext())
+                assertArrayEquals(Crypto.appParam(cursor.getString(0)), cursor.getBlob(1));
+
+            cursor.close();
+            migrated.close();
+
+        } finally {
+            SQLiteDatabase.deleteDatabase(legacy);
+        }
+
+    }
+
+    /**
+     * Writes a database the way the app did before the schema was versioned:
+     * {@code lastUsed} as local time text, no {@code useCount}, no
+     * {@code appParam}, no outbox and no indexes. Key {@code k} belongs to
+     * server {@code k % servers}; the even ones are used by "server" users.
+     * @param file    Where to create the database.
+     * @param keys    The number of keys to write.
+     * @param servers The number of servers to spread them over.
+     */
+    static void createLegacyDatabase(File file, int keys, int servers) {
+
+        SQLiteDatabase legacy = SQLiteDatabase.openOrCreateDatabase(file, null);
+        legacy.beginTransaction();
+
+        try {
+
+            legacy.execSQL("CREATE TABLE keys(" +
+                           "keyID    TEXT PRIMARY KEY NOT NULL," +
+                           "appID    TEXT NOT NULL," +
+                           "counter  INT  NOT NULL," +
+                           "userID   TEXT NOT NULL," +
+                           "lastUsed TEXT NOT NULL)");
+            legacy.execSQL("CREATE TABLE servers(" +
+                           "appID   TEXT PRIMARY KEY NOT NULL," +
+                           "appURL TEXT NOT NULL," +
+                           "appName TEXT NOT NULL)");
+
+            for (int s = 0; s < servers; s++)
+                legacy.execSQL("INSERT INTO servers VALUES (?, ?, ?)", new Object[] {
+                        "app" + s, "https://app" + s + ".example.com/", "App " + s });
+
+            for (int k = 0; k < keys; k++)
+                legacy.execSQL("INSERT INTO keys VALUES (?, ?, ?, ?, ?)", new Object[] {
+                        "key" + k, "app" + (k % servers), k,
+                        (k % 2 == 0 ? "server" : "desk") + k + "@example.com",
+                        legacyLastUsed(k) });
+
+            legacy.setTransactionSuccessful();
+
+        } finally {
+            legacy.endTransaction();
+            legacy.close();
+        }
+
+    }
+
+    /**
+     * @return When key {@code k} of a legacy database was last used, a minute
+     *         after the one before it.
+     */
+    static String legacyLastUsed(int k) {
+        return new SimpleDateFormat(LEGACY_LAST_USED).format(1473849000000L + k * 60000L);
+    }
+
+    /**
+     * Explains a query, failing if any step is a full table scan or a sort.
+     * @return The plan's steps.
+     */
+    private List<String> plan(String query, String... args) {
+
+        List<String> steps = new ArrayList<>();
+        Cursor cursor = database.rawQuery("EXPLAIN QUERY PLAN " + query, args);
+
+        while (cursor.moveToNext())
+            steps.add(cursor.getString(cursor.getColumnIndex("detail")));
+
+        cursor.close();
+
+        for (String step : steps) {
+            assertFalse(query + "\n" + steps, FULL_SCAN.matcher(step).matches());
+            assertFalse(query + "\n" + steps, step.contains("TEMP B-TREE"));
+        }
+
+        return steps;
+
+    }
+
+    /**
+     * Asserts that some step of a plan mentions all of the given words.
+     */
+    private static void assertUses(List<String> steps, String... words) {
+
+        for (String step : steps) {
+
+            boolean all = true;
+
+            for (String word : words)
+                all &= step.contains(word);
+
+            if (all)
+                return;
+
+        }
+
+        fail("No step uses " + Arrays.toString(words) + ": " + steps);
+
+    }
+
+}
@@ -0,0 +1,191 @@
+package com.terainsights.a2q2r_android.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hammers {@link KeyLocks} from many threads to check that work on one key is
+ * never interleaved, while different keys don't wait on each other.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public class KeyLocksTest {
+
+    private static final int THREADS = 16;
+    private static final int ITERATIONS = 20000;
+    private static final int KEYS = 4;
+
+    @Test
+    public void serializesWorkOnEachKey() throws Exception {
+
+        final String[] keyIDs = new String[KEYS];
+        final int[] counters = new int[KEYS];
+        final AtomicReference<?>[] owners = new AtomicReference<?>[KEYS];
+        final AtomicInteger overlaps = new AtomicInteger();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        for (int k = 0; k < KEYS; k++) {
+            keyIDs[k] = Utils.genKeyID();
+            owners[k] = new AtomicReference<Thread>();
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+
+        for (int t = 0; t < THREADS; t++) {
+
+            final int offset = t;
+
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public void run() {
+
+                    try {
+
+                        start.await();
+
+                        for (int i = 0; i < ITERATIONS; i++) {
+
+                            int k = (i + offset) % KEYS;
+                            AtomicReference<Thread> owner = (AtomicReference<Thread>) owners[k];
+
+                            KeyLocks.lock(keyIDs[k]);
+
+                            try {
+
+                                if (!owner.compareAndSet(null, Thread.currentThread()))
+                                    overlaps.incrementAndGet();
+
+                                // A check-then-act on the counter, as authentication does.
+                                int counter = counters[k];
+                                Thread.yield();
+                                counters[k] = counter + 1;
+
+                                owner.set(null);
+
+                            } finally {
+                                KeyLocks.unlock(keyIDs[k]);
+                            }
+
+                        }
+
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+
+                }
+            });
+
+            threads[t].start();
+
+        }
+
+        start.countDown();
+
+        for (Thread thread : threads)
+            thread.join();
+
+        if (error.get() != null)
+            throw new AssertionError(error.get());
+
+        int total = 0;
+
+        for (int counter : counters)
+            total += counter;
+
+        assertEquals(0, overlaps.get());
+        assertEquals(THREADS * ITERATIONS, total);
+
+    }
+
+    @Test
+    public void letsOtherKeysProceed() throws Exception {
+
+        final String held = Utils.genKeyID();
+        String other;
+
+        do {
+            other = Utils.genKeyID();
+        } while (KeyLocks.stripe(other) == KeyLocks.stripe(held));
+
+        final String free = other;
+        final CountDownLatch locked = new CountDownLatch(1);
+
+        KeyLocks.lock(held);
+
+        try {
+
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    KeyLocks.lock(free);
+                    KeyLocks.unlock(free);
+                    locked.countDown();
+                }
+            }).start();
+
+            assertTrue(locked.await(5, TimeUnit.SECONDS));
+
+        } finally {
+            KeyLocks.unlock(held);
+        }
+
+    }
+
+    @Test
+    public void blocksOtherThreadsOnTheSameKey() throws Exception {
+
+        final String keyID = Utils.genKeyID();
+        final CountDownLatch locked = new CountDownLatch(1);
+
+        KeyLocks.lock(keyID);
+
+        try {
+
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    KeyLocks.lock(keyID);
+                    KeyLocks.unlock(keyID);
+                    locked.countDown();
+                }
+            }).start();
+
+            assertFalse(locked.await(200, TimeUnit.MILLISECONDS));
+
+        } finally {
+            KeyLocks.unlock(keyID);
+        }
+
+        assertTrue(locked.await(5, TimeUnit.SECONDS));
+
+    }
+
+    @Test
+    public void isReentrant() {
+
+        String keyID = Utils.genKeyID();
+
+        KeyLocks.lock(keyID);
+        KeyLocks.lock(keyID);
+        KeyLocks.unlock(keyID);
+
+        assertTrue(KeyLocks.stripe(keyID).isHeldByCurrentThread());
+
+        KeyLocks.unlock(keyID);
+
+        assertFalse(KeyLocks.stripe(keyID).isHeldByCurrentThread());
+
+    }
+
+}
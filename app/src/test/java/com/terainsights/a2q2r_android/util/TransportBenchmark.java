@@ -0,0 +1,167 @@
+package com.terainsights.a2q2r_android.util;
+
+import com.terainsights.a2q2r_android.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import javax.net.ServerSocketFactory;
+
+import okhttp3.OkHttpClient;
+import okhttp3.ResponseBody;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares sending back-to-back authentications through {@link Transport},
+ * which keeps one client and its connections for the whole app, with building
+ * a client and Retrofit for every request, as the app used to. The server is a
+ * local {@link MockWebServer} over plain HTTP, so a new connection only costs
+ * a loopback TCP handshake here; over the network, and with TLS, it costs
+ * several round trips on top.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class TransportBenchmark extends Benchmark {
+
+    private static final U2FJson.Message BODY =
+            new U2FJson.AuthenticationResponse(new byte[100], new byte[77]);
+
+    private MockWebServer server;
+    private String url;
+
+    @Before
+    public void setUp() throws Exception {
+
+        server = new MockWebServer();
+        server.setServerSocketFactory(new NoDelayServerSocketFactory());
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse().setBody("{\"successful\":true}");
+            }
+        });
+        server.start();
+
+        url = server.url("/").toString();
+
+    }
+
+    /**
+     * Also runs when the benchmark was skipped before {@link #setUp()}.
+     */
+    @After
+    public void tearDown() throws Exception {
+        if (server != null)
+            server.shutdown();
+    }
+
+    @Test
+    public void sharedClient() throws Exception {
+
+        measure("authenticate, shared client", 2000, new Op() {
+            @Override
+            public Object run(int i) throws Exception {
+                return checked(Transport.authentication(url).authenticate(BODY).execute());
+            }
+        });
+
+    }
+
+    @Test
+    public void clientPerRequest() throws Exception {
+
+        measure("authenticate, client per request", 1000, new Op() {
+            @Override
+            public Object run(int i) throws Exception {
+
+                OkHttpClient client = new OkHttpClient();
+                Retrofit retro = new Retrofit.Builder()
+                        .baseUrl(url)
+                        .client(client)
+                        .addConverterFactory(U2FJson.FACTORY)
+                        .build();
+
+                try {
+                    return checked(retro.create(U2F.Authentication.class)
+                            .authenticate(BODY).execute());
+                } finally {
+                    // Otherwise every run leaves a connection open on the server.
+                    client.connectionPool().evictAll();
+                }
+
+            }
+        });
+
+    }
+
+    /**
+     * Reads the whole response, as the app does, which also releases its
+     * connection for reuse.
+     */
+    private static String checked(Response<ResponseBody> response) throws Exception {
+        assertEquals(200, response.code());
+        return response.body().string();
+    }
+
+    /**
+     * Turns off Nagle's algorithm on the server's connections, as servers
+     * generally do. MockWebServer leaves it on, so on a reused connection the
+     * second part of each response waits out the client's delayed ACK, about
+     * 40 ms, which would swamp what is being measured.
+     */
+    private static class NoDelayServerSocketFactory extends ServerSocketFactory {
+
+        @Override
+        public ServerSocket createServerSocket() throws IOException {
+            return new ServerSocket() {
+                @Override
+                public Socket accept() throws IOException {
+                    Socket socket = new Socket();
+                    implAccept(socket);
+                    socket.setTcpNoDelay(true);
+                    return socket;
+                }
+            };
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port) throws IOException {
+            return createServerSocket(port, 50, null);
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog) throws IOException {
+            return createServerSocket(port, backlog, null);
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog, InetAddress address)
+                throws IOException {
+            ServerSocket socket = createServerSocket();
+            socket.bind(new InetSocketAddress(address, port), backlog);
+            return socket;
+        }
+
+    }
+
+}
@@ -0,0 +1,187 @@
+package com.terainsights.a2q2r_android.util;
+
+import android.util.Base64;
+
+import com.terainsights.a2q2r_android.BuildConfig;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.StringReader;
+import java.util.Arrays;
+
+import okhttp3.RequestBody;
+import okio.Buffer;
+
+/**
+ * Compares {@link U2FJson}, which streams messages straight into the request
+ * and reads server info field by field, with building and parsing whole
+ * {@link JSONObject} trees the way the app used to. Every body is written out
+ * into a buffer, as OkHttp would, so both sides pay for the bytes they put on
+ * the wire. Runs under Robolectric for {@link JSONObject} and {@link Base64}.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class U2FJsonBenchmark extends Benchmark {
+
+    private static final String CHALLENGE = WebSafeBase64.encode(new byte[32]);
+    private static final String APP_URL = "https://2q2r.example.com/";
+    private static final int BASE64_FLAGS = Base64.URL_SAFE | Base64.NO_PADDING | Base64.NO_WRAP;
+
+    /**
+     * About the size of a DER-encoded ECDSA signature behind its counter.
+     */
+    private static final byte[] SIGNATURE_DATA = filled(77);
+
+    /**
+     * About the size of a registration with a self-signed attestation
+     * certificate.
+     */
+    private static final byte[] REGISTRATION_DATA = filled(780);
+
+    private static final String SERVER_INFO = "{\"appID\":\"" + CHALLENGE + "\"," +
+            "\"appName\":\"2Q2R Example\",\"appURL\":\"" + APP_URL + "\"," +
+            "\"baseURL\":\"" + APP_URL + "\",\"keyTypes\":[\"2q2r\",\"u2f\"]," +
+            "\"infoURL\":\"" + APP_URL + "info\",\"waitURL\":\"" + APP_URL + "wait\"}";
+
+    private final Buffer sink = new Buffer();
+
+    @Test
+    public void authenticationBody() throws Exception {
+
+        measure("authentication body, streamed", 100000, new Op() {
+            @Override
+            public Object run(int i) throws Exception {
+                byte[] clientData = U2FJson.clientData("navigator.id.getAssertion", CHALLENGE,
+                        APP_URL);
+                return send(U2FJson.body(new U2FJson.AuthenticationResponse(clientData,
+                        SIGNATURE_DATA)));
+            }
+        });
+
+        measure("authentication body, JSONObject", 100000, new Op() {
+            @Override
+            public Object run(int i) throws Exception {
+
+                byte[] clientData = clientData("navigator.id.getAssertion");
+
+                JSONObject data = new JSONObject();
+                data.put("clientData", Base64.encodeToString(clientData, BASE64_FLAGS));
+                data.put("signatureData", Base64.encodeToString(SIGNATURE_DATA, BASE64_FLAGS));
+
+                JSONObject body = new JSONObject();
+                body.put("successful", true);
+                body.put("data", data);
+
+                return send(RequestBody.create(U2FJson.MEDIA_TYPE, body.toString()));
+
+            }
+        });
+
+    }
+
+    @Test
+    public void registrationBody() throws Exception {
+
+        measure("registration body, streamed", 50000, new Op() {
+            @Override
+            public Object run(int i) throws Exception {
+                byte[] clientData = U2FJson.clientData("navigator.id.finishEnrollment",
+                        CHALLENGE, APP_URL);
+                return send(U2FJson.body(new U2FJson.RegistrationResponse("Pixel", "token",
+                        clientData, REGISTRATION_DATA)));
+            }
+        });
+
+        measure("registration body, JSONObject", 50000, new Op() {
+            @Override
+            public Object run(int i) throws Exception {
+
+                byte[] clientData = clientData("navigator.id.finishEnrollment");
+
+                JSONObject data = new JSONObject();
+                data.put("type", "2q2r");
+                data.put("deviceName", "Pixel");
+                data.put("fcmToken", "token");
+                data.put("clientData", Base64.encodeToString(clientData, BASE64_FLAGS));
+                data.put("registrationData",
+                        Base64.encodeToString(REGISTRATION_DATA, BASE64_FLAGS));
+
+                JSONObject body = new JSONObject();
+                body.put("successful", true);
+                body.put("data", data);
+
+                return send(RequestBody.create(U2FJson.MEDIA_TYPE, body.toString()));
+
+            }
+        });
+
+    }
+
+    @Test
+    public void serverInfo() throws Exception {
+
+        measure("server info, JsonReader", 100000, new Op() {
+            @Override
+            public Object run(int i) throws Exception {
+                return U2FJson.readServerInfo(new StringReader(SERVER_INFO)).appID;
+            }
+        });
+
+        measure("server info, JSONObject", 100000, new Op() {
+            @Override
+            public Object run(int i) throws Exception {
+                JSONObject info = new JSONObject(SERVER_INFO);
+                return info.getString("appID") + info.getString("appName") +
+                        info.getString("appURL");
+            }
+        });
+
+    }
+
+    /**
+     * Writes a request body out the way OkHttp does, then throws it away.
+     * @return The number of bytes written.
+     */
+    private long send(RequestBody body) throws Exception {
+
+        body.writeTo(sink);
+
+        long size = sink.size();
+        sink.clear();
+
+        return size;
+
+    }
+
+    /**
+     * Builds client data the way the app used to, unescaping the slashes in
+     * the appURL that {@link JSONObject} escapes.
+     */
+    private static byte[] clientData(String typ) throws Exception {
+
+        JSONObject clientData = new JSONObject();
+        clientData.put("typ", typ);
+        clientData.put("challenge", CHALLENGE);
+        clientData.put("origin", APP_URL);
+
+        return clientData.toString().replace("\\", "").getBytes("UTF-8");
+
+    }
+
+    private static byte[] filled(int length) {
+
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) 0x5a);
+
+        return bytes;
+
+    }
+
+}
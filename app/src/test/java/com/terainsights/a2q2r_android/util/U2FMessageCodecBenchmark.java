@@ -0,0 +1,67 @@
+package com.terainsights.a2q2r_android.util;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.security.KeyPairGenerator;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+
+import static com.terainsights.a2q2r_android.util.U2FMessageCodecTest.APP_PARAM;
+import static com.terainsights.a2q2r_android.util.U2FMessageCodecTest.CERTIFICATE;
+import static com.terainsights.a2q2r_android.util.U2FMessageCodecTest.CHALLENGE_PARAM;
+import static com.terainsights.a2q2r_android.util.U2FMessageCodecTest.KEY_HANDLE;
+import static com.terainsights.a2q2r_android.util.U2FMessageCodecTest.SIGNATURE;
+
+/**
+ * Measures building the raw U2F messages with {@link U2FMessageCodec}.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public class U2FMessageCodecBenchmark extends Benchmark {
+
+    private static byte[] publicKey;
+
+    @BeforeClass
+    public static void setUpKey() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        publicKey = U2FMessageCodec.encodePublicKey(
+                (ECPublicKey) generator.generateKeyPair().getPublic());
+    }
+
+    @Test
+    public void registrationResponse() throws Exception {
+        measure("registrationResponse", 200000, new Op() {
+            @Override
+            public Object run(int i) {
+                return U2FMessageCodec.registrationResponse(publicKey, KEY_HANDLE, CERTIFICATE,
+                        SIGNATURE);
+            }
+        });
+    }
+
+    @Test
+    public void authenticationSignedData() throws Exception {
+        measure("authenticationSignedData", 500000, new Op() {
+            @Override
+            public Object run(int i) {
+                return U2FMessageCodec.authenticationSignedData(APP_PARAM,
+                        U2FMessageCodec.USER_PRESENT, i, CHALLENGE_PARAM);
+            }
+        });
+    }
+
+    @Test
+    public void authenticationResponse() throws Exception {
+        measure("authenticationResponse", 500000, new Op() {
+            @Override
+            public Object run(int i) {
+                return U2FMessageCodec.authenticationResponse(U2FMessageCodec.USER_PRESENT, i,
+                        SIGNATURE);
+            }
+        });
+    }
+
+}
@@ -0,0 +1,180 @@
+package com.terainsights.a2q2r_android.util;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Round-trips the raw U2F messages built by {@link U2FMessageCodec} through its
+ * parsers, and checks the layouts against the FIDO raw message format.
+ * {@link U2FMessageCodecBenchmark} measures building them.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public class U2FMessageCodecTest {
+
+    private static KeyPairGenerator generator;
+
+    static final byte[] APP_PARAM = filled(32, 0x11);
+    static final byte[] CHALLENGE_PARAM = filled(32, 0x22);
+    static final byte[] KEY_HANDLE = filled(43, 0x33);
+    static final byte[] SIGNATURE = der(0x30, filled(70, 0x44));
+    static final byte[] CERTIFICATE = der(0x30, filled(300, 0x55));
+
+    @BeforeClass
+    public static void setUpGenerator() throws Exception {
+        generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+    }
+
+    @Test
+    public void encodesPublicKeysAsUncompressedPoints() {
+
+        // The X.509 encoding of a P-256 key ends with the same uncompressed point.
+        for (int i = 0; i < 100; i++) {
+
+            KeyPair pair = generator.generateKeyPair();
+            byte[] x509 = pair.getPublic().getEncoded();
+            byte[] point = U2FMessageCodec.encodePublicKey((ECPublicKey) pair.getPublic());
+
+            assertEquals(U2FMessageCodec.PUBLIC_KEY_LENGTH, point.length);
+            assertArrayEquals(Arrays.copyOfRange(x509, x509.length - point.length, x509.length),
+                    point);
+
+        }
+
+    }
+
+    @Test
+    public void roundTripsRegistrationResponses() {
+
+        byte[] publicKey = publicKey();
+        byte[] message = U2FMessageCodec.registrationResponse(publicKey, KEY_HANDLE,
+                CERTIFICATE, SIGNATURE);
+
+        assertEquals(1 + 65 + 1 + KEY_HANDLE.length + CERTIFICATE.length + SIGNATURE.length,
+                message.length);
+        assertEquals(U2FMessageCodec.REGISTRATION_RESERVED, message[0]);
+        assertEquals(KEY_HANDLE.length, message[66]);
+
+        U2FMessageCodec.Registration parsed = U2FMessageCodec.parseRegistrationResponse(message);
+
+        assertArrayEquals(publicKey, parsed.publicKey);
+        assertArrayEquals(KEY_HANDLE, parsed.keyHandle);
+        assertArrayEquals(CERTIFICATE, parsed.certificate);
+        assertArrayEquals(SIGNATURE, parsed.signature);
+
+    }
+
+    @Test
+    public void roundTripsAuthenticationResponses() {
+
+        for (int counter : new int[] {0, 1, 0x7F, 0x80, 0xFFFF, Integer.MAX_VALUE, -1}) {
+
+            byte[] message = U2FMessageCodec.authenticationResponse(
+                    U2FMessageCodec.USER_PRESENT, counter, SIGNATURE);
+            U2FMessageCodec.Authentication parsed =
+                    U2FMessageCodec.parseAuthenticationResponse(message);
+
+            assertEquals(U2FMessageCodec.USER_PRESENT, parsed.userPresence);
+            assertEquals(counter, parsed.counter);
+            assertArrayEquals(SIGNATURE, parsed.signature);
+
+        }
+
+    }
+
+    @Test
+    public void laysOutSignedData() {
+
+        byte[] publicKey = publicKey();
+        byte[] registration = U2FMessageCodec.registrationSignedData(APP_PARAM, CHALLENGE_PARAM,
+                KEY_HANDLE, publicKey);
+
+        assertArrayEquals(concat(new byte[] {0x00}, APP_PARAM, CHALLENGE_PARAM, KEY_HANDLE,
+                publicKey), registration);
+
+        byte[] authentication = U2FMessageCodec.authenticationSignedData(APP_PARAM,
+                U2FMessageCodec.USER_PRESENT, 0x01020304, CHALLENGE_PARAM);
+
+        assertArrayEquals(concat(APP_PARAM, new byte[] {0x01, 0x01, 0x02, 0x03, 0x04},
+                CHALLENGE_PARAM), authentication);
+
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTruncatedRegistrations() {
+        byte[] message = U2FMessageCodec.registrationResponse(publicKey(), KEY_HANDLE,
+                CERTIFICATE, SIGNATURE);
+        U2FMessageCodec.parseRegistrationResponse(Arrays.copyOf(message, 100));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBadReservedBytes() {
+        byte[] message = U2FMessageCodec.registrationResponse(publicKey(), KEY_HANDLE,
+                CERTIFICATE, SIGNATURE);
+        message[0] = 0x00;
+        U2FMessageCodec.parseRegistrationResponse(message);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTruncatedAuthentications() {
+        U2FMessageCodec.parseAuthenticationResponse(new byte[] {0x01, 0x00, 0x00});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOverlongKeyHandles() {
+        U2FMessageCodec.registrationResponse(publicKey(), new byte[256], CERTIFICATE, SIGNATURE);
+    }
+
+    private static byte[] publicKey() {
+        return U2FMessageCodec.encodePublicKey((ECPublicKey) generator.generateKeyPair().getPublic());
+    }
+
+    private static byte[] filled(int length, int value) {
+        byte[] result = new byte[length];
+        Arrays.fill(result, (byte) value);
+        return result;
+    }
+
+    /**
+     * Wraps content in a DER element with the given tag, using the long length
+     * form when it is needed.
+     */
+    private static byte[] der(int tag, byte[] content) {
+        byte[] header = content.length < 0x80
+                ? new byte[] {(byte) tag, (byte) content.length}
+                : new byte[] {(byte) tag, (byte) 0x82, (byte) (content.length >> 8),
+                              (byte) content.length};
+        return concat(header, content);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+
+        int length = 0;
+
+        for (byte[] part : parts)
+            length += part.length;
+
+        byte[] result = new byte[length];
+        int offset = 0;
+
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, offset, part.length);
+            offset += part.length;
+        }
+
+        return result;
+
+    }
+
+}
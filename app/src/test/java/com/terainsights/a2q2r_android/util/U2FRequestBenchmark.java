@@ -0,0 +1,58 @@
+package com.terainsights.a2q2r_android.util;
+
+import com.terainsights.a2q2r_android.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static com.terainsights.a2q2r_android.util.U2FRequestTest.AUTHENTICATION;
+import static com.terainsights.a2q2r_android.util.U2FRequestTest.REGISTRATION;
+
+/**
+ * Measures parsing scanned requests with {@link U2FRequest#parse(String)}.
+ * Runs under Robolectric for {@link android.util.Patterns}.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class U2FRequestBenchmark extends Benchmark {
+
+    @Test
+    public void parseAuthentication() throws Exception {
+        measure("parse authentication", 500000, new Op() {
+            @Override
+            public Object run(int i) {
+                return U2FRequest.parse(AUTHENTICATION);
+            }
+        });
+    }
+
+    @Test
+    public void parseRegistration() throws Exception {
+        measure("parse registration", 200000, new Op() {
+            @Override
+            public Object run(int i) {
+                return U2FRequest.parse(REGISTRATION);
+            }
+        });
+    }
+
+    @Test
+    public void rejectMalformed() throws Exception {
+
+        final String malformed = AUTHENTICATION.replace(' ', '_');
+
+        measure("reject malformed", 500000, new Op() {
+            @Override
+            public Object run(int i) {
+                return String.valueOf(U2FRequest.parse(malformed));
+            }
+        });
+
+    }
+
+}
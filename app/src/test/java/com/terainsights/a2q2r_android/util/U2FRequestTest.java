@@ -0,0 +1,102 @@
+package com.terainsights.a2q2r_android.util;
+
+import com.terainsights.a2q2r_android.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Parses well-formed requests and a corpus of malformed ones with
+ * {@link U2FRequest#parse(String)}. Runs under Robolectric for
+ * {@link android.util.Patterns}. {@link U2FRequestBenchmark} measures parsing.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class U2FRequestTest {
+
+    private static final String CHALLENGE = WebSafeBase64.encode(new byte[32]);
+    private static final String APP_ID = "q5mEjlm8hAfjzLz6aVTtXeFkqOXL0Xv4yH6ZFzXFaQ0";
+    private static final String KEY_ID = "k3L3Sf8kGSYw3ZXEdLQbag";
+
+    static final String REGISTRATION =
+            "R " + CHALLENGE + " https://2q2r.example.com/register/info alice";
+    static final String AUTHENTICATION =
+            "A " + APP_ID + " " + CHALLENGE + " " + KEY_ID + " 12";
+
+    @Test
+    public void parsesRegistrations() {
+
+        RegistrationRequest request = (RegistrationRequest) U2FRequest.parse(REGISTRATION);
+
+        assertEquals(CHALLENGE, request.challenge);
+        assertEquals("https://2q2r.example.com/register/info", request.infoURL);
+        assertEquals("alice", request.userID);
+
+    }
+
+    @Test
+    public void parsesAuthentications() {
+
+        AuthenticationRequest request = (AuthenticationRequest) U2FRequest.parse(AUTHENTICATION);
+
+        assertEquals(APP_ID, request.appID);
+        assertEquals(CHALLENGE, request.challenge);
+        assertEquals(KEY_ID, request.keyID);
+        assertEquals(12, request.counter);
+
+    }
+
+    @Test
+    public void rejectsMalformedRequests() {
+
+        String shortChallenge = WebSafeBase64.encode(new byte[31]);
+        String longChallenge = WebSafeBase64.encode(new byte[33]);
+
+        String[] corpus = {
+                null,
+                "",
+                "R",
+                "A",
+                "R ",
+                "A ",
+                "X " + CHALLENGE + " https://2q2r.example.com alice",
+                "r " + CHALLENGE + " https://2q2r.example.com alice",
+                "R" + CHALLENGE + " https://2q2r.example.com alice",
+                "R  " + CHALLENGE + " https://2q2r.example.com alice",
+                "R " + CHALLENGE + "  https://2q2r.example.com alice",
+                "R " + CHALLENGE + " https://2q2r.example.com alice ",
+                "R " + CHALLENGE + " https://2q2r.example.com",
+                "R " + CHALLENGE + " https://2q2r.example.com alice bob",
+                "R " + shortChallenge + " https://2q2r.example.com alice",
+                "R " + longChallenge + " https://2q2r.example.com alice",
+                "R " + CHALLENGE.replace('A', '+') + " https://2q2r.example.com alice",
+                "R " + CHALLENGE + " not a url alice",
+                "R " + CHALLENGE + " ://nowhere alice",
+                "A " + APP_ID + " " + CHALLENGE + " " + KEY_ID,
+                "A " + APP_ID + " " + CHALLENGE + " " + KEY_ID + " 12 13",
+                "A " + APP_ID + " " + CHALLENGE + " " + KEY_ID + " twelve",
+                "A " + APP_ID + " " + CHALLENGE + " " + KEY_ID + " 99999999999",
+                "A " + APP_ID + " " + CHALLENGE + " " + KEY_ID + " ",
+                "A " + APP_ID + " " + CHALLENGE + "  " + KEY_ID + " 12",
+                "A " + APP_ID + " " + shortChallenge + " " + KEY_ID + " 12",
+                "A " + shortChallenge + " " + CHALLENGE + " " + KEY_ID + " 12",
+                "A " + APP_ID + "== " + CHALLENGE + " " + KEY_ID + " 12",
+                "A " + APP_ID + " " + CHALLENGE + "\n" + KEY_ID + " 12",
+                "A " + CHALLENGE + " https://2q2r.example.com alice",
+                "R " + APP_ID + " " + CHALLENGE + " " + KEY_ID + " 12",
+        };
+
+        for (String text : corpus)
+            assertNull(text, U2FRequest.parse(text));
+
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.terainsights.a2q2r_android.util;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Measures authentications through {@link U2FResponder} end to end, with a
+ * {@link SoftwareKeyProvider} standing in for the AndroidKeyStore.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public class U2FResponderBenchmark extends Benchmark {
+
+    private static final String APP_URL = "https://2q2r.example.com/";
+    private static final String CHALLENGE = WebSafeBase64.encode(new byte[32]);
+
+    private static SoftwareKeyProvider keys;
+    private static String keyID;
+
+    @BeforeClass
+    public static void setUpKey() throws Exception {
+        keys = new SoftwareKeyProvider();
+        keyID = Utils.genKeyID();
+        keys.generate(keyID);
+    }
+
+    @Test
+    public void authenticate() throws Exception {
+        measure("authenticate", 5000, new Op() {
+            @Override
+            public Object run(int i) throws Exception {
+                return U2FResponder.authenticate(keys, keyID, CHALLENGE, APP_URL, i);
+            }
+        });
+    }
+
+    @Test
+    public void prepareAuthentication() throws Exception {
+        measure("prepareAuthentication", 200000, new Op() {
+            @Override
+            public Object run(int i) {
+                return U2FResponder.prepareAuthentication(CHALLENGE, APP_URL, i);
+            }
+        });
+    }
+
+}
@@ -0,0 +1,133 @@
+package com.terainsights.a2q2r_android.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import java.security.KeyStoreException;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.ECPublicKey;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs registrations and authentications through {@link U2FResponder} with a
+ * {@link SoftwareKeyProvider}, verifying the responses the way a relying party
+ * would. {@link U2FResponderBenchmark} measures authentication throughput.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+public class U2FResponderTest {
+
+    private static final String APP_URL = "https://2q2r.example.com/";
+    private static final String CHALLENGE = WebSafeBase64.encode(new byte[32]);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private SoftwareKeyProvider keys;
+    private String keyID;
+    private ECPublicKey publicKey;
+
+    @Before
+    public void setUp() throws Exception {
+        keys = new SoftwareKeyProvider();
+        keyID = Utils.genKeyID();
+        publicKey = (ECPublicKey) keys.generate(keyID);
+    }
+
+    @Test
+    public void registers() throws Exception {
+
+        U2FResponder.Response response = U2FResponder.register(keys, keyID, publicKey,
+                CHALLENGE, APP_URL);
+        U2FMessageCodec.Registration registration =
+                U2FMessageCodec.parseRegistrationResponse(response.data);
+
+        assertArrayEquals(U2FMessageCodec.encodePublicKey(publicKey), registration.publicKey);
+        assertArrayEquals(WebSafeBase64.decode(keyID), registration.keyHandle);
+
+        X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(registration.certificate));
+        certificate.verify(publicKey);
+
+        assertTrue(verify(registration.signature, U2FMessageCodec.registrationSignedData(
+                Crypto.appParam(APP_URL), Crypto.sha256(response.clientData),
+                registration.keyHandle, registration.publicKey)));
+
+        String clientData = new String(response.clientData, UTF_8);
+
+        assertTrue(clientData, clientData.contains("\"navigator.id.finishEnrollment\""));
+        assertTrue(clientData, clientData.contains(CHALLENGE));
+
+    }
+
+    @Test
+    public void authenticates() throws Exception {
+
+        U2FResponder.Response response = U2FResponder.authenticate(keys, keyID, CHALLENGE,
+                APP_URL, 7);
+        U2FMessageCodec.Authentication authentication =
+                U2FMessageCodec.parseAuthenticationResponse(response.data);
+
+        assertEquals(U2FMessageCodec.USER_PRESENT, authentication.userPresence);
+        assertEquals(7, authentication.counter);
+
+        assertTrue(verify(authentication.signature, U2FMessageCodec.authenticationSignedData(
+                Crypto.appParam(APP_URL), authentication.userPresence, authentication.counter,
+                Crypto.sha256(response.clientData))));
+
+        // A signature over a different counter must not verify.
+        assertFalse(verify(authentication.signature, U2FMessageCodec.authenticationSignedData(
+                Crypto.appParam(APP_URL), authentication.userPresence, 8,
+                Crypto.sha256(response.clientData))));
+
+    }
+
+    @Test
+    public void signsPreparedAuthentications() throws Exception {
+
+        U2FResponder.PreparedAuthentication prepared =
+                U2FResponder.prepareAuthentication(CHALLENGE, APP_URL, 3);
+        U2FResponder.Response response = U2FResponder.authenticate(keys, keyID, prepared);
+
+        assertArrayEquals(prepared.clientData, response.clientData);
+
+        U2FMessageCodec.Authentication authentication =
+                U2FMessageCodec.parseAuthenticationResponse(response.data);
+
+        assertEquals(3, authentication.counter);
+        assertTrue(verify(authentication.signature, prepared.signedData));
+
+    }
+
+    @Test(expected = KeyStoreException.class)
+    public void rejectsUnknownKeys() throws Exception {
+        U2FResponder.authenticate(keys, Utils.genKeyID(), CHALLENGE, APP_URL, 1);
+    }
+
+    @Test
+    public void forgetsDeletedKeys() throws Exception {
+
+        assertTrue(keys.contains(keyID));
+        keys.delete(keyID);
+        assertFalse(keys.contains(keyID));
+
+    }
+
+    private boolean verify(byte[] signature, byte[] data) throws Exception {
+
+        Signature verifier = Signature.getInstance("SHA256withECDSA");
+        verifier.initVerify(publicKey);
+        verifier.update(data);
+
+        return verifier.verify(signature);
+
+    }
+
+}
@@ -0,0 +1,109 @@
+package com.terainsights.a2q2r_android.util;
+
+import android.util.Base64;
+
+import com.terainsights.a2q2r_android.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Random;
+
+/**
+ * Compares {@link WebSafeBase64} with {@link android.util.Base64}, which it
+ * replaced, on the input sizes U2F uses: 16-byte key handles, 32-byte
+ * challenges and parameters, and kilobyte-sized messages.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class WebSafeBase64Benchmark extends Benchmark {
+
+    private static final int FLAGS = Base64.URL_SAFE | Base64.NO_WRAP | Base64.NO_PADDING;
+    private static final int[] LENGTHS = {16, 32, 1024};
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void encode() throws Exception {
+
+        for (int length : LENGTHS) {
+
+            final byte[] data = random(length);
+
+            measure("android.util.Base64 encode " + length, iterations(length), new Op() {
+                @Override
+                public Object run(int i) {
+                    return Base64.encodeToString(data, FLAGS);
+                }
+            });
+
+            measure("WebSafeBase64 encode " + length, iterations(length), new Op() {
+                @Override
+                public Object run(int i) {
+                    return WebSafeBase64.encode(data);
+                }
+            });
+
+        }
+
+    }
+
+    @Test
+    public void decode() throws Exception {
+
+        for (int length : LENGTHS) {
+
+            final String encoded = WebSafeBase64.encode(random(length));
+            final byte[] dst = new byte[length];
+
+            measure("android.util.Base64 decode " + length, iterations(length), new Op() {
+                @Override
+                public Object run(int i) {
+                    return Base64.decode(encoded, FLAGS);
+                }
+            });
+
+            measure("WebSafeBase64 decode " + length, iterations(length), new Op() {
+                @Override
+                public Object run(int i) {
+                    return WebSafeBase64.decode(encoded);
+                }
+            });
+
+            measure("WebSafeBase64 decode into array " + length, iterations(length), new Op() {
+                @Override
+                public Object run(int i) {
+                    return WebSafeBase64.decode(encoded, dst, 0);
+                }
+            });
+
+            measure("WebSafeBase64 decodedLength " + length, iterations(length), new Op() {
+                @Override
+                public Object run(int i) {
+                    return WebSafeBase64.decodedLength(encoded);
+                }
+            });
+
+        }
+
+    }
+
+    /**
+     * Roughly the same amount of work for every size.
+     */
+    private static int iterations(int length) {
+        return 4000000 / (length + 16);
+    }
+
+    private byte[] random(int length) {
+        byte[] result = new byte[length];
+        random.nextBytes(result);
+        return result;
+    }
+
+}
@@ -0,0 +1,139 @@
+package com.terainsights.a2q2r_android.util;
+
+import android.util.Base64;
+
+import com.terainsights.a2q2r_android.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link WebSafeBase64} against {@link android.util.Base64}, which it
+ * replaced. {@link WebSafeBase64Benchmark} compares the speed of the two.
+ *
+ * @author Sam Claus, Tera Insights, LLC
+ * @version 9/14/16
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class WebSafeBase64Test {
+
+    private static final int FLAGS = Base64.URL_SAFE | Base64.NO_WRAP | Base64.NO_PADDING;
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void matchesAndroidBase64() {
+
+        for (int length = 0; length < 1100; length++) {
+
+            byte[] data = random(length);
+            String expected = Base64.encodeToString(data, FLAGS);
+
+            assertEquals(expected, WebSafeBase64.encode(data));
+            assertEquals(expected.length(), WebSafeBase64.encodedLength(length));
+            assertArrayEquals(data, WebSafeBase64.decode(expected));
+            assertEquals(length, WebSafeBase64.decodedLength(expected));
+
+        }
+
+    }
+
+    @Test
+    public void decodesPaddedInput() {
+
+        for (int length = 0; length < 64; length++) {
+
+            byte[] data = random(length);
+            String padded = Base64.encodeToString(data, Base64.URL_SAFE | Base64.NO_WRAP);
+
+            assertEquals(length, WebSafeBase64.decodedLength(padded));
+            assertArrayEquals(data, WebSafeBase64.decode(padded));
+
+        }
+
+    }
+
+    @Test
+    public void rejectsInvalidInput() {
+
+        String[] corpus = {
+                "A",            // A single character can't hold a byte.
+                "AAAAA",
+                "AA=",          // Padding must complete a group of four.
+                "AAA==",
+                "AA===",
+                "====",
+                "A===",
+                "AA=A",         // Padding only at the end.
+                "AB+C",         // The standard alphabet isn't web-safe.
+                "AB/C",
+                "AB C",
+                "AB\nC",
+                "ABéC",
+                "ABĀC",
+        };
+
+        for (String encoded : corpus) {
+
+            assertEquals(encoded, -1, WebSafeBase64.decodedLength(encoded));
+
+            try {
+                WebSafeBase64.decode(encoded);
+                throw new AssertionError("Decoded " + encoded);
+            } catch (IllegalArgumentException expected) {
+                // Expected.
+            }
+
+        }
+
+    }
+
+    @Test
+    public void decodesIntoExistingArrays() {
+
+        byte[] data = random(32);
+        byte[] dst = new byte[40];
+
+        assertEquals(32, WebSafeBase64.decode(WebSafeBase64.encode(data), dst, 5));
+
+        for (int i = 0; i < 32; i++)
+            assertEquals(data[i], dst[5 + i]);
+
+        assertEquals(0, dst[4]);
+        assertEquals(0, dst[37]);
+
+    }
+
+    @Test
+    public void encodesIntoStreams() throws Exception {
+
+        // Crosses the chunk boundaries of the stream encoder.
+        for (int length : new int[] {0, 1, 2, 3, 767, 768, 769, 1536, 3000}) {
+
+            byte[] data = random(length);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            WebSafeBase64.encode(data, out);
+
+            assertEquals(WebSafeBase64.encode(data), out.toString("US-ASCII"));
+
+        }
+
+    }
+
+    private byte[] random(int length) {
+        byte[] result = new byte[length];
+        random.nextBytes(result);
+        return result;
+    }
+
+}